@@ -1 +1 @@
-java -classpath ./:./commons-io-2.5.jar:./commons-lang3-3.5.jar JackAnalyzer $1
+java -classpath ./:./commons-io-2.5.jar:./commons-lang3-3.5.jar JackAnalyzer "$@"
@@ -0,0 +1,101 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.File;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+// how many bytes analyzing one file allocates once the pools are warm, counted on every thread
+// (the --split-subroutines executor too) with ThreadMXBean. takes the same options as JackAnalyzer:
+//   java AllocationBenchmark [--iterations=N] [--max-bytes-per-file=N] [options] <file.jack | dir>
+// with --max-bytes-per-file it fails when a file allocates more than that, so it can gate a build.
+// a run where a file fails is still counted, since its allocation is real, and the failures reported
+public class AllocationBenchmark {
+
+    private final static String ITERATIONS_OPTION = "--iterations=";
+    private final static String MAX_BYTES_OPTION = "--max-bytes-per-file=";
+    private final static String JACK_EXTENSION = "jack";
+
+    public static void main(String[] args) {
+        int iterations = 200;
+        long maxBytesPerFile = -1;
+        List<String> analyzerArgs = new ArrayList<String>();
+        for (String arg:args) {
+            if (arg.startsWith(ITERATIONS_OPTION)) {
+                iterations = Integer.parseInt(StringUtils.substringAfter(arg, "="));
+            } else if (arg.startsWith(MAX_BYTES_OPTION)) {
+                maxBytesPerFile = Long.parseLong(StringUtils.substringAfter(arg, "="));
+            } else {
+                analyzerArgs.add(arg);
+            }
+        }
+
+        JackAnalyzer analyzer = new JackAnalyzer();
+        String inName = analyzer.parseOptions(analyzerArgs.toArray(new String[analyzerArgs.size()])).get(0);
+        File in = new File(inName);
+        int files = in.isDirectory() ? FileUtils.listFiles(in, new String[]{JACK_EXTENSION}, false).size() : 1;
+
+        PrintStream console = System.out;
+        PrintStream errors = System.err;
+        // JackAnalyzer reports every file on stdout, and stack traces on stderr; that isn't what's being measured
+        PrintStream nowhere = new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+
+            public void write(byte[] b, int off, int len) {
+            }
+        });
+        System.setOut(nowhere);
+        System.setErr(nowhere);
+        long before;
+        long after;
+        int failedRuns = 0;
+        try {
+            // the first rounds fill the pools and get the JIT going
+            for (int i = 0; i < iterations; ++i) {
+                run(analyzer, inName);
+            }
+            before = getAllocatedBytes();
+            for (int i = 0; i < iterations; ++i) {
+                if (!run(analyzer, inName)) {
+                    ++failedRuns;
+                }
+            }
+            after = getAllocatedBytes();
+        } finally {
+            System.setOut(console);
+            System.setErr(errors);
+            analyzer.shutdown();
+        }
+        long bytesPerFile = (after - before) / ((long) iterations * files);
+        System.out.println("bytes/file " + bytesPerFile + (failedRuns > 0 ? " (" + failedRuns + " of " + iterations + " runs had failed files)" : ""));
+        if (maxBytesPerFile >= 0 && bytesPerFile > maxBytesPerFile) {
+            throw new RuntimeException("oops: " + bytesPerFile + " bytes/file, over the limit of " + maxBytesPerFile);
+        }
+    }
+
+    // a file that fails is reported by translate() after the others have run, which is all it costs here
+    private static boolean run(JackAnalyzer analyzer, String inName) {
+        try {
+            analyzer.translate(inName, null);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    // summed over the threads alive now; the executor threads live as long as the analyzer
+    private static long getAllocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes:threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
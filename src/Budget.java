@@ -0,0 +1,49 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// per-file limits, checked cooperatively by the Tokenizer and CompilationEngine as they go
+// so a pathological file gets cancelled instead of stalling or taking down the batch.
+// a limit of 0 means no limit. counters are shared by the threads of --split-subroutines
+public class Budget {
+
+    private final long maxMillis;
+    private final long maxTokens;
+    private final int maxDepth;
+    private final long maxOutputBytes;
+
+    private final long start = System.nanoTime();
+    private final AtomicLong tokens = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+
+    public Budget(long maxMillis, long maxTokens, int maxDepth, long maxOutputBytes) {
+        this.maxMillis = maxMillis;
+        this.maxTokens = maxTokens;
+        this.maxDepth = maxDepth;
+        this.maxOutputBytes = maxOutputBytes;
+    }
+
+    void checkTime() {
+        if (maxMillis > 0 && System.nanoTime() - start > maxMillis * 1000000L) {
+            throw new BudgetExceededException("took longer than " + maxMillis + "ms");
+        }
+    }
+
+    void addToken() {
+        if (maxTokens > 0 && tokens.incrementAndGet() > maxTokens) {
+            throw new BudgetExceededException("more than " + maxTokens + " tokens");
+        }
+        checkTime();
+    }
+
+    void addOutput(int bytes) {
+        if (maxOutputBytes > 0 && outputBytes.addAndGet(bytes) > maxOutputBytes) {
+            throw new BudgetExceededException("more than " + maxOutputBytes + " bytes of output");
+        }
+        checkTime();
+    }
+
+    void checkDepth(int depth) {
+        if (maxDepth > 0 && depth > maxDepth) {
+            throw new BudgetExceededException("nested deeper than " + maxDepth);
+        }
+    }
+}
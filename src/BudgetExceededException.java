@@ -0,0 +1,9 @@
+// thrown from inside the Tokenizer or CompilationEngine when a file goes over its Budget
+public class BudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BudgetExceededException(String reason) {
+        super(reason);
+    }
+}
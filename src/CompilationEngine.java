@@ -1,8 +1,12 @@
-import org.apache.commons.io.IOUtils;
-
+import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 public class CompilationEngine {
 
@@ -11,6 +15,48 @@ public class CompilationEngine {
 
     private Tokenizer tokenizer;
 
+    private Budget budget;
+    // how many tags are open
+    private int depth = 0;
+
+    // each line is encoded in here and written in one go, so writing makes no garbage
+    private byte[] line = new byte[256];
+    private int lineLength = 0;
+
+    // what compileClass(ExecutorService) lexes a file into, kept for the next file
+    private List<String> replayTokens = new ArrayList<String>();
+    private List<TokenType> replayTypes = new ArrayList<TokenType>();
+    private Tokenizer replayTokenizer = new Tokenizer();
+    private TreeMap<Integer, Future<byte[]>> subroutines = new TreeMap<Integer, Future<byte[]>>();
+    private Map<Integer, Integer> subroutineEnds = new HashMap<Integer, Integer>();
+
+    // how many subroutines are compiled ahead of the one being written, so a huge class is never all in memory
+    private final static int SUBROUTINES_AHEAD = 4 * Runtime.getRuntime().availableProcessors();
+
+    // one replay tokenizer, engine and buffer per executor thread, reset for every subroutine rather than rebuilt
+    private static class SubroutineWorker {
+        private final Tokenizer tokenizer = new Tokenizer();
+        private final CompilationEngine engine = new CompilationEngine();
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private void release() {
+            tokenizer.reset(Collections.<String>emptyList(), Collections.<TokenType>emptyList());
+            if (buffer.size() > JackAnalyzer.MAX_POOLED_BUFFER) {
+                buffer = new ByteArrayOutputStream();
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+
+    private final static ThreadLocal<SubroutineWorker> subroutineWorkers = new ThreadLocal<SubroutineWorker>() {
+        protected SubroutineWorker initialValue() {
+            return new SubroutineWorker();
+        }
+    };
+
+    private final static byte[] lineEnd = JackAnalyzer.LINE_END.getBytes(Charset.forName(JackAnalyzer.UTF8));
+
     private final static Set<String> typeKeywords = new HashSet<String>(Arrays.asList("int", "char", "boolean"));
 
     private final static Set<String> statementKeywords = new HashSet<String>(Arrays.asList("if", "let", "while", "do", "return"));
@@ -34,6 +80,21 @@ public class CompilationEngine {
         this.tokenizer = tokenizer;
     }
 
+    // an engine with nothing to compile yet, to be reset and reused from file to file
+    public CompilationEngine() {
+    }
+
+    public void reset(Tokenizer tokenizer, OutputStream output) {
+        this.tokenizer = tokenizer;
+        this.output = output;
+        budget = null;
+        depth = 0;
+    }
+
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
     private void advanceAndWriteExpected(TokenType type, String expected) {
         tokenizer.advance();
         writeExpected(type, expected);
@@ -47,36 +108,247 @@ public class CompilationEngine {
         if (expected != null && !expected.equals(value)) {
             throw new IllegalArgumentException("expected value: " + expected);
         }
-        writeLine(type.doTag(value));
+        writeTagged(type, value);
     }
 
     private void beginTag(String tag) {
-        writeLine(getBegin(tag));
+        ++depth;
+        if (budget != null) {
+            budget.checkDepth(depth);
+        }
+        lineLength = 0;
+        append("<");
+        append(tag);
+        append(">");
+        endLine();
     }
 
     private void endTag(String tag) {
-        writeLine(getEnd(tag));
+        --depth;
+        lineLength = 0;
+        append("</");
+        append(tag);
+        append(">");
+        endLine();
     }
 
-    private String getBegin(String tag) {
-        return "<" + tag + ">";
+
+    // type.doTag(value) on its own line, without building the string
+    private void writeTagged(TokenType type, String value) {
+        lineLength = 0;
+        append(type.getStartTag());
+        append(value);
+        append(type.getEndTag());
+        endLine();
     }
 
-    private String getEnd(String tag) {
-        return "</" + tag + ">";
+    private void append(String text) {
+        int length = text.length();
+        for (int i = 0; i < length; ++i) {
+            if (text.charAt(i) >= 0x80) {
+                // not plain ascii, let the charset deal with it
+                appendBytes(text.getBytes(Charset.forName(JackAnalyzer.UTF8)));
+                return;
+            }
+        }
+        ensureLineCapacity(length);
+        for (int i = 0; i < length; ++i) {
+            line[lineLength++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void appendBytes(byte[] bytes) {
+        ensureLineCapacity(bytes.length);
+        System.arraycopy(bytes, 0, line, lineLength, bytes.length);
+        lineLength += bytes.length;
+    }
+
+    private void ensureLineCapacity(int more) {
+        if (lineLength + more > line.length) {
+            line = Arrays.copyOf(line, Math.max(line.length * 2, lineLength + more));
+        }
     }
 
+    private void endLine() {
+        appendBytes(lineEnd);
+        if (budget != null) {
+            budget.addOutput(lineLength);
+        }
+        try {
+            output.write(line, 0, lineLength);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
 
-    private void writeLine(String line) {
-        Collection<String> lines = Collections.singletonList(line);
+    private void writeBytes(byte[] bytes) {
         try {
-            IOUtils.writeLines(lines, JackAnalyzer.LINE_END, output, JackAnalyzer.UTF8);
+            output.write(bytes);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
     public void compileClass() {
+        String token = compileClassStart();
+        while (isSubroutine(token)) {
+            compileSubroutineDeclaration(token);
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+        }
+        compileClassEnd();
+    }
+
+    // same output as compileClass(), but the whole file is lexed up front and every top-level
+    // subroutine is compiled on the executor into its own buffer, then written back in order.
+    // if a subroutine fails on its own it is redone inline so errors come out exactly as before.
+    public void compileClass(ExecutorService executor) {
+        if (replayTokens.size() > Tokenizer.MAX_POOLED_SIZE) {
+            replayTokens = new ArrayList<String>();
+            replayTypes = new ArrayList<TokenType>();
+        }
+        // any task still running from an earlier file was cancelled, and its result is never read
+        List<String> tokens = replayTokens;
+        List<TokenType> types = replayTypes;
+        tokens.clear();
+        types.clear();
+        subroutines.clear();
+        subroutineEnds.clear();
+        while (tokenizer.hasMoreTokens()) {
+            tokenizer.advance();
+            tokens.add(tokenizer.getCurrentToken());
+            types.add(tokenizer.tokenType());
+        }
+
+        try {
+            List<int[]> ranges = findSubroutines(tokens, types);
+            int next = 0;
+
+            tokenizer = replayTokenizer;
+            tokenizer.reset(tokens, types);
+            tokenizer.setBudget(budget);
+            String token = compileClassStart();
+            while (isSubroutine(token)) {
+                int index = tokenizer.getTokenIndex();
+                // anything before here was compiled inline along with the subroutine before it
+                while (next < ranges.size() && ranges.get(next)[0] < index) {
+                    ++next;
+                }
+                for (Future<byte[]> skipped:subroutines.headMap(index).values()) {
+                    skipped.cancel(true);
+                }
+                subroutines.headMap(index).clear();
+                while (next < ranges.size() && (subroutines.size() < SUBROUTINES_AHEAD || ranges.get(next)[0] == index)) {
+                    int[] range = ranges.get(next++);
+                    subroutines.put(range[0], executor.submit(subroutineTask(tokens.subList(range[0], range[1] + 1), types.subList(range[0], range[1] + 1))));
+                    subroutineEnds.put(range[0], range[1]);
+                }
+                byte[] compiled = getSubroutine(subroutines.remove(index));
+                Integer end = subroutineEnds.remove(index);
+                if (compiled != null) {
+                    writeBytes(compiled);
+                    tokenizer.setTokenIndex(end);
+                } else {
+                    compileSubroutineDeclaration(token);
+                }
+                tokenizer.advance();
+                token = tokenizer.getCurrentToken();
+            }
+            compileClassEnd();
+        } finally {
+            // once the class has failed nothing else wants these, and they'd hold up the next file
+            for (Future<byte[]> subroutine:subroutines.values()) {
+                subroutine.cancel(true);
+            }
+        }
+    }
+
+    // the first and last token index of every top-level subroutine, found by brace matching
+    static List<int[]> findSubroutines(List<String> tokens, List<TokenType> types) {
+        return findSubroutines(tokens, types, 0, new int[1]);
+    }
+
+    // the same for part of a class that starts at the given brace depth. endDepth[0] is left
+    // holding the depth it ends at, or -1 if it ends part way into a subroutine
+    static List<int[]> findSubroutines(List<String> tokens, List<TokenType> types, int depth, int[] endDepth) {
+        List<int[]> ranges = new ArrayList<int[]>();
+        int start = -1;
+        for (int i = 0; i < tokens.size(); ++i) {
+            if (types.get(i) != TokenType.SYMBOL && types.get(i) != TokenType.KEYWORD) {
+                continue;
+            }
+            String token = tokens.get(i);
+            if (token.equals("{")) {
+                ++depth;
+            } else if (token.equals("}")) {
+                --depth;
+                if (depth == 1 && start >= 0) {
+                    ranges.add(new int[]{start, i});
+                    start = -1;
+                }
+            } else if (depth == 1 && start < 0 && isSubroutineKeyword(token)) {
+                start = i;
+            }
+        }
+        endDepth[0] = start >= 0 ? -1 : depth;
+        return ranges;
+    }
+
+    // compiles one pre-lexed subroutine on its own. it has to stop on its own closing brace,
+    // otherwise it isn't what compileClass() would see, and false is returned
+    static boolean compileSubroutine(List<String> tokens, List<TokenType> types, OutputStream out, Budget budget) {
+        SubroutineWorker worker = subroutineWorkers.get();
+        Tokenizer subTokenizer = worker.tokenizer;
+        subTokenizer.reset(tokens, types);
+        subTokenizer.setBudget(budget);
+        subTokenizer.advance();
+        CompilationEngine engine = worker.engine;
+        engine.reset(subTokenizer, out);
+        engine.setBudget(budget);
+        // a subroutine always sits inside <class>
+        engine.depth = 1;
+        engine.compileSubroutineDeclaration(tokens.get(0));
+        return !subTokenizer.hasMoreTokens();
+    }
+
+    private Callable<byte[]> subroutineTask(final List<String> tokens, final List<TokenType> types) {
+        return new Callable<byte[]>() {
+            public byte[] call() {
+                SubroutineWorker worker = subroutineWorkers.get();
+                try {
+                    if (!compileSubroutine(tokens, types, worker.buffer, budget)) {
+                        return null;
+                    }
+                    return worker.buffer.toByteArray();
+                } finally {
+                    worker.release();
+                }
+            }
+        };
+    }
+
+    private byte[] getSubroutine(Future<byte[]> subroutine) {
+        if (subroutine == null) {
+            return null;
+        }
+        try {
+            return subroutine.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            // no point redoing it inline once the file is over budget
+            if (e.getCause() instanceof BudgetExceededException) {
+                throw (BudgetExceededException) e.getCause();
+            }
+            return null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // writes everything up to the first subroutine and returns the token we stopped on
+    String compileClassStart() {
         beginTag("class");
         advanceAndWriteExpected(TokenType.KEYWORD, "class");
         advanceAndWriteExpected(TokenType.IDENTIFIER, null);
@@ -89,13 +361,10 @@ public class CompilationEngine {
             tokenizer.advance();
             token = tokenizer.getCurrentToken();
         }
+        return token;
+    }
 
-        while (isSubroutine(token)) {
-            compileSubroutineDeclaration(token);
-            tokenizer.advance();
-            token = tokenizer.getCurrentToken();
-        }
-
+    void compileClassEnd() {
         writeExpected(TokenType.SYMBOL, "}");
         endTag("class");
     }
@@ -109,6 +378,10 @@ public class CompilationEngine {
     }
 
     private boolean isSubroutine(String token) {
+        return isSubroutineKeyword(token);
+    }
+
+    static boolean isSubroutineKeyword(String token) {
         return (token.equals("constructor") || token.equals("function") || token.equals("method"));
     }
 
@@ -132,24 +405,24 @@ public class CompilationEngine {
 
     public void compileClassVariableDeclaration(String keyword) {
         beginTag("classVarDec");
-        writeLine(TokenType.KEYWORD.doTag(keyword));
+        writeTagged(TokenType.KEYWORD, keyword);
 
         tokenizer.advance();
         String token = tokenizer.getCurrentToken();
         // type is int, char, boolean or className (identifier)
         if (typeKeywords.contains(token)) {
-            writeLine(TokenType.KEYWORD.doTag(token));
+            writeTagged(TokenType.KEYWORD, token);
         } else {
-            writeLine(TokenType.IDENTIFIER.doTag(token));
+            writeTagged(TokenType.IDENTIFIER, token);
         }
 
         while (!(token.equals(";"))) {
             tokenizer.advance();
             token = tokenizer.getCurrentToken();
             if (token.equals(",") || token.equals(";")) {
-                writeLine(TokenType.SYMBOL.doTag(token));
+                writeTagged(TokenType.SYMBOL, token);
             } else {
-                writeLine(TokenType.IDENTIFIER.doTag(token));
+                writeTagged(TokenType.IDENTIFIER, token);
             }
         }
         endTag("classVarDec");
@@ -157,16 +430,16 @@ public class CompilationEngine {
 
     public void compileSubroutineDeclaration(String keyword) {
         beginTag("subroutineDec");
-        writeLine(TokenType.KEYWORD.doTag(keyword));
+        writeTagged(TokenType.KEYWORD, keyword);
 
         tokenizer.advance();
         String token = tokenizer.getCurrentToken();
         if (token.equals("void")) {
-            writeLine(TokenType.KEYWORD.doTag(token));
+            writeTagged(TokenType.KEYWORD, token);
         } else if (typeKeywords.contains(token)) {
-            writeLine(TokenType.KEYWORD.doTag(token));
+            writeTagged(TokenType.KEYWORD, token);
         } else {
-            writeLine(TokenType.IDENTIFIER.doTag(token));
+            writeTagged(TokenType.IDENTIFIER, token);
         }
         advanceAndWriteExpected(TokenType.IDENTIFIER, null);
 
@@ -184,11 +457,11 @@ public class CompilationEngine {
         String token = tokenizer.getCurrentToken();
         while (!(token.equals(")"))) {
             if (token.equals(",")) {
-                writeLine(TokenType.SYMBOL.doTag(token));
+                writeTagged(TokenType.SYMBOL, token);
             } else if (typeKeywords.contains(token)) {
-                writeLine(TokenType.KEYWORD.doTag(token));
+                writeTagged(TokenType.KEYWORD, token);
             } else {
-                writeLine(TokenType.IDENTIFIER.doTag(token));
+                writeTagged(TokenType.IDENTIFIER, token);
             }
             tokenizer.advance();
             token = tokenizer.getCurrentToken();
@@ -216,23 +489,23 @@ public class CompilationEngine {
     public void compileVarDec() {
         beginTag("varDec");
 
-        writeLine(TokenType.KEYWORD.doTag("var"));
+        writeTagged(TokenType.KEYWORD, "var");
         tokenizer.advance();
         String token = tokenizer.getCurrentToken();
         // type is int, char, boolean or className (identifier)
         if (typeKeywords.contains(token)) {
-            writeLine(TokenType.KEYWORD.doTag(token));
+            writeTagged(TokenType.KEYWORD, token);
         } else {
-            writeLine(TokenType.IDENTIFIER.doTag(token));
+            writeTagged(TokenType.IDENTIFIER, token);
         }
 
         while (!(token.equals(";"))) {
             tokenizer.advance();
             token = tokenizer.getCurrentToken();
             if (token.equals(",") || token.equals(";")) {
-                writeLine(TokenType.SYMBOL.doTag(token));
+                writeTagged(TokenType.SYMBOL, token);
             } else {
-                writeLine(TokenType.IDENTIFIER.doTag(token));
+                writeTagged(TokenType.IDENTIFIER, token);
             }
         }
 
@@ -277,7 +550,7 @@ public class CompilationEngine {
 
     public void compileIf() {
         beginTag("ifStatement");
-        writeLine(TokenType.KEYWORD.doTag("if"));
+        writeTagged(TokenType.KEYWORD, "if");
         advanceAndWriteExpected(TokenType.SYMBOL, "(");
         tokenizer.advance();
         compileExpression();
@@ -290,7 +563,7 @@ public class CompilationEngine {
         tokenizer.advance();
         token = tokenizer.getCurrentToken();
         if (token.equals("else")) {
-            writeLine(TokenType.KEYWORD.doTag("else"));
+            writeTagged(TokenType.KEYWORD, "else");
             advanceAndWriteExpected(TokenType.SYMBOL, "{");
             tokenizer.advance();
             token = tokenizer.getCurrentToken();
@@ -304,12 +577,12 @@ public class CompilationEngine {
 
     public void compileLet() {
         beginTag("letStatement");
-        writeLine(TokenType.KEYWORD.doTag("let"));
+        writeTagged(TokenType.KEYWORD, "let");
         advanceAndWriteExpected(TokenType.IDENTIFIER, null);
         tokenizer.advance();
         String token = tokenizer.getCurrentToken();
         if (token.equals("[")) {
-            writeLine(TokenType.SYMBOL.doTag("["));
+            writeTagged(TokenType.SYMBOL, "[");
             tokenizer.advance();
             compileExpression();
             writeExpected(TokenType.SYMBOL, "]");
@@ -324,14 +597,14 @@ public class CompilationEngine {
 
     public void compileDo() {
         beginTag("doStatement");
-        writeLine(TokenType.KEYWORD.doTag("do"));
+        writeTagged(TokenType.KEYWORD, "do");
 
         // subroutine name, or class or var name
         advanceAndWriteExpected(TokenType.IDENTIFIER, null);
         tokenizer.advance();
         String token = tokenizer.getCurrentToken();
         if (token.equals(".")) {
-            writeLine(TokenType.SYMBOL.doTag("."));
+            writeTagged(TokenType.SYMBOL, ".");
             // subroutine name
             advanceAndWriteExpected(TokenType.IDENTIFIER, null);
             tokenizer.advance();
@@ -346,7 +619,7 @@ public class CompilationEngine {
 
     public void compileWhile() {
         beginTag("whileStatement");
-        writeLine(TokenType.KEYWORD.doTag("while"));
+        writeTagged(TokenType.KEYWORD, "while");
         advanceAndWriteExpected(TokenType.SYMBOL, "(");
         tokenizer.advance();
         compileExpression();
@@ -363,7 +636,7 @@ public class CompilationEngine {
 
     public void compileReturn() {
         beginTag("returnStatement");
-        writeLine(TokenType.KEYWORD.doTag("return"));
+        writeTagged(TokenType.KEYWORD, "return");
         tokenizer.advance();
         String token = tokenizer.getCurrentToken();
         if (!token.equals(";")) {
@@ -412,16 +685,16 @@ public class CompilationEngine {
         String token = tokenizer.getCurrentToken();
         TokenType type = tokenizer.tokenType();
         if (isSimpleTerm(type)) {
-            writeLine(type.doTag(token));
+            writeTagged(type, token);
         } else if (isKeywordConstant(token)) {
-            writeLine(TokenType.KEYWORD.doTag(token));
+            writeTagged(TokenType.KEYWORD, token);
         } else if (isUnaryOp(token)) {
-            writeLine(TokenType.SYMBOL.doTag(token));
+            writeTagged(TokenType.SYMBOL, token);
             tokenizer.advance();
             compileTerm();
             needAdvance = false;
         } else if (token.equals("(")) {
-            writeLine(TokenType.SYMBOL.doTag("("));
+            writeTagged(TokenType.SYMBOL, "(");
             tokenizer.advance();
             compileExpression();
             writeExpected(TokenType.SYMBOL, ")");
@@ -432,16 +705,16 @@ public class CompilationEngine {
             tokenizer.advance();
             String nextToken = tokenizer.getCurrentToken();
             if (nextToken.equals("[")) {
-                writeLine(TokenType.SYMBOL.doTag("["));
+                writeTagged(TokenType.SYMBOL, "[");
                 tokenizer.advance();
                 compileExpression();
                 writeExpected(TokenType.SYMBOL, "]");
             } else if (nextToken.equals("(")) {
-                writeLine(TokenType.SYMBOL.doTag("("));
+                writeTagged(TokenType.SYMBOL, "(");
                 compileExpressionList();
                 writeExpected(TokenType.SYMBOL, ")");
             } else if (nextToken.equals(".")) {
-                writeLine(TokenType.SYMBOL.doTag("."));
+                writeTagged(TokenType.SYMBOL, ".");
                 advanceAndWriteExpected(TokenType.IDENTIFIER, null);
                 advanceAndWriteExpected(TokenType.SYMBOL, "(");
                 compileExpressionList();
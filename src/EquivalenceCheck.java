@@ -0,0 +1,456 @@
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+// checks every way of running the analyzer against the reference, ReferenceEngine and
+// ReferenceTokenizer (the baseline's, frozen) on each file, over a seeded corpus of random
+// classes (some of them broken) plus any real .jack files given with --corpus:
+//   plain        JackAnalyzer on a directory
+//   split        the same with --split-subroutines
+//   archive      the corpus as a zip, analyzed in place into an output zip
+//   incremental  IncrementalAnalyzer under random edits, checked after every one
+// output has to match byte for byte, partial output of a failing file included, and the same
+// files have to fail. then each path is timed and compared with a baseline recorded on the same corpus:
+//   java EquivalenceCheck [--seed=N] [--programs=N] [--edits=N] [--corpus=dir]
+//                         [--baseline=file [--record] [--tolerance=PCT]]
+public class EquivalenceCheck {
+
+    private final static String SEED_OPTION = "--seed=";
+    private final static String PROGRAMS_OPTION = "--programs=";
+    private final static String EDITS_OPTION = "--edits=";
+    private final static String CORPUS_OPTION = "--corpus=";
+    private final static String BASELINE_OPTION = "--baseline=";
+    private final static String RECORD_OPTION = "--record";
+    private final static String TOLERANCE_OPTION = "--tolerance=";
+
+    private final static String JACK_SUFFIX = ".jack";
+    private final static String XML_SUFFIX = ".xml";
+    private final static String ARCHIVE_DIR = "src/";
+    private final static String FAILED = "FAILED:";
+    private final static Charset UTF8 = Charset.forName(JackAnalyzer.UTF8);
+
+    // typed into the incremental analyzer; some keep the class compiling, some break its structure
+    private final static String[] EDITS = {"x", " ", "\n", "{", "}", "(", ";", "\"", "/*", "*/", "// note",
+            "let ax = 1;", "do gx();", "if (ax) { let ax = 2; }", "while (true) { return; }",
+            "function void gx() { return; }", "var int kx;", "+ 1", "[0]"};
+
+    private final static int WARMUP_ROUNDS = 5;
+    private final static int TIMED_ROUNDS = 10;
+
+    // what a baseline was recorded on, next to the numbers
+    private final static String[] CORPUS_KEYS = {"seed", "programs", "edits", "corpus"};
+
+    private long seed = 1;
+    private int programs = 2000;
+    private int edits = 20;
+    private File realCorpus;
+
+    private List<String> names = new ArrayList<String>();
+    private Map<String, String> sources = new HashMap<String, String>();
+    private Map<String, Reference> references = new HashMap<String, Reference>();
+    private long corpusBytes;
+    private File corpusDir;
+    private File corpusArchive;
+    private int mismatches;
+
+    private static class Reference {
+        private byte[] output;
+        private boolean failed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        EquivalenceCheck check = new EquivalenceCheck();
+        String baseline = null;
+        boolean record = false;
+        double tolerance = 25;
+        for (String arg:args) {
+            if (arg.startsWith(SEED_OPTION)) {
+                check.seed = Long.parseLong(StringUtils.substringAfter(arg, "="));
+            } else if (arg.startsWith(PROGRAMS_OPTION)) {
+                check.programs = Integer.parseInt(StringUtils.substringAfter(arg, "="));
+            } else if (arg.startsWith(EDITS_OPTION)) {
+                check.edits = Integer.parseInt(StringUtils.substringAfter(arg, "="));
+            } else if (arg.startsWith(CORPUS_OPTION)) {
+                check.realCorpus = new File(StringUtils.substringAfter(arg, "="));
+                if (!check.realCorpus.isDirectory()) {
+                    throw new IllegalArgumentException("not a directory: " + check.realCorpus);
+                }
+            } else if (arg.startsWith(BASELINE_OPTION)) {
+                baseline = StringUtils.substringAfter(arg, "=");
+            } else if (arg.equals(RECORD_OPTION)) {
+                record = true;
+            } else if (arg.startsWith(TOLERANCE_OPTION)) {
+                tolerance = Double.parseDouble(StringUtils.substringAfter(arg, "="));
+            } else {
+                throw new IllegalArgumentException("unknown option: " + arg);
+            }
+        }
+
+        File workDir = Files.createTempDirectory("equivalence").toFile();
+        try {
+            check.generateCorpus(workDir);
+            check.checkDirectory("plain");
+            check.checkDirectory("split", "--split-subroutines");
+            check.checkArchive();
+            check.checkIncremental();
+            if (check.mismatches > 0) {
+                throw new RuntimeException("oops: " + check.mismatches + " mismatch(es)");
+            }
+            System.out.println("EQUIVALENT: " + check.names.size() + " programs, seed " + check.seed
+                    + (check.realCorpus == null ? "" : ", " + (check.names.size() - check.programs) + " from " + check.realCorpus));
+            if (baseline != null) {
+                check.checkThroughput(new File(baseline), record, tolerance);
+            }
+        } finally {
+            FileUtils.deleteQuietly(workDir);
+        }
+    }
+
+    private void generateCorpus(File workDir) throws Exception {
+        corpusDir = new File(workDir, "corpus");
+        corpusArchive = new File(workDir, "corpus.zip");
+        corpusDir.mkdirs();
+        Random random = new Random(seed);
+        ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(corpusArchive));
+        try {
+            for (int i = 0; i < programs; ++i) {
+                String name = "P" + toLetters(i);
+                // about one in five fails part way through
+                String source = RandomJackProgram.generate(random, name, random.nextInt(5) == 0);
+                addProgram(name, source.getBytes(UTF8), zipOut);
+            }
+            if (realCorpus != null) {
+                List<File> files = new ArrayList<File>(FileUtils.listFiles(realCorpus, new String[]{"jack"}, false));
+                Collections.sort(files);
+                for (File file:files) {
+                    String name = FilenameUtils.getBaseName(file.getName());
+                    if (sources.containsKey(name)) {
+                        throw new IllegalArgumentException("same name as a generated program: " + file);
+                    }
+                    addProgram(name, FileUtils.readFileToByteArray(file), zipOut);
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(zipOut);
+        }
+    }
+
+    // into the corpus directory and archive, byte for byte
+    private void addProgram(String name, byte[] bytes, ZipOutputStream zipOut) throws Exception {
+        File file = new File(corpusDir, name + JACK_SUFFIX);
+        FileUtils.writeByteArrayToFile(file, bytes);
+        zipOut.putNextEntry(new ZipEntry(ARCHIVE_DIR + name + JACK_SUFFIX));
+        zipOut.write(bytes);
+        zipOut.closeEntry();
+        names.add(name);
+        sources.put(name, new String(bytes, UTF8));
+        references.put(name, reference(file));
+        corpusBytes += bytes.length;
+    }
+
+    // identifiers can't hold digits, so the programs are numbered in letters
+    private static String toLetters(int number) {
+        StringBuilder letters = new StringBuilder();
+        do {
+            letters.insert(0, (char) ('a' + number % 26));
+            number /= 26;
+        } while (number > 0);
+        return letters.toString();
+    }
+
+    private static Reference reference(File file) {
+        Reference reference = new Reference();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new ReferenceEngine(new ReferenceTokenizer(file), out).compileClass();
+        } catch (RuntimeException e) {
+            reference.failed = true;
+        }
+        reference.output = out.toByteArray();
+        return reference;
+    }
+
+    private static Reference reference(String source) {
+        Reference reference = new Reference();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            new ReferenceEngine(new ReferenceTokenizer(source), out).compileClass();
+        } catch (RuntimeException e) {
+            reference.failed = true;
+        }
+        reference.output = out.toByteArray();
+        return reference;
+    }
+
+    private void checkDirectory(String label, String... options) throws Exception {
+        for (File xml:FileUtils.listFiles(corpusDir, new String[]{"xml"}, false)) {
+            xml.delete();
+        }
+        Set<String> failed = run(corpusDir.getPath(), null, options);
+        for (String name:names) {
+            File xml = new File(corpusDir, name + XML_SUFFIX);
+            byte[] output = xml.exists() ? FileUtils.readFileToByteArray(xml) : null;
+            compare(label, name, output, failed.contains(name));
+        }
+    }
+
+    private void checkArchive() throws Exception {
+        File outArchive = new File(corpusArchive.getParentFile(), "out.zip");
+        Set<String> failed = run(corpusArchive.getPath(), outArchive.getPath());
+        Map<String, byte[]> entries = new HashMap<String, byte[]>();
+        ZipInputStream zipIn = new ZipInputStream(new FileInputStream(outArchive));
+        try {
+            ZipEntry entry;
+            while ((entry = zipIn.getNextEntry()) != null) {
+                entries.put(entry.getName(), IOUtils.toByteArray(zipIn));
+            }
+        } finally {
+            IOUtils.closeQuietly(zipIn);
+        }
+        for (String name:names) {
+            byte[] output = entries.get(ARCHIVE_DIR + name + XML_SUFFIX);
+            compare("archive", name, output, failed.contains(name));
+        }
+    }
+
+    // every edit is checked twice: the change applied to the old output has to give the new
+    // output, and the new output has to be the reference for the edited source
+    private void checkIncremental() {
+        Random random = new Random(seed);
+        for (String name:names) {
+            String source = sources.get(name);
+            IncrementalAnalyzer analyzer = new IncrementalAnalyzer(source);
+            byte[] output = analyzer.getOutput();
+            compareIncremental(name, 0, analyzer, source);
+            for (int i = 0; i < edits; ++i) {
+                int offset = random.nextInt(source.length() + 1);
+                int removed = random.nextInt(3) == 0 ? Math.min(random.nextInt(8), source.length() - offset) : 0;
+                String inserted = random.nextInt(4) == 0 ? "" : EDITS[random.nextInt(EDITS.length)];
+                source = source.substring(0, offset) + inserted + source.substring(offset + removed);
+
+                IncrementalAnalyzer.Change change;
+                try {
+                    change = analyzer.edit(offset, removed, inserted);
+                } catch (RuntimeException e) {
+                    mismatch("incremental", name, "edit " + (i + 1) + " threw " + e);
+                    break;
+                }
+                ByteArrayOutputStream applied = new ByteArrayOutputStream();
+                applied.write(output, 0, change.getOffset());
+                applied.write(change.getInserted(), 0, change.getInserted().length);
+                int after = change.getOffset() + change.getRemovedLength();
+                applied.write(output, after, output.length - after);
+                output = analyzer.getOutput();
+                if (!Arrays.equals(applied.toByteArray(), output)) {
+                    mismatch("incremental", name, "edit " + (i + 1) + " reported the wrong change");
+                    break;
+                }
+                if (!compareIncremental(name, i + 1, analyzer, source)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    // IncrementalAnalyzer only promises the reference output when the class compiles
+    private boolean compareIncremental(String name, int edit, IncrementalAnalyzer analyzer, String source) {
+        String where = "after " + edit + " edit(s)";
+        if (!analyzer.getSource().equals(source)) {
+            return mismatch("incremental", name, "source differs " + where);
+        }
+        Reference reference = reference(source);
+        if (reference.failed != (analyzer.getError() != null)) {
+            return mismatch("incremental", name, (reference.failed ? "reference failed " : "reference compiled ") + where);
+        }
+        if (!reference.failed && !Arrays.equals(reference.output, analyzer.getOutput())) {
+            return mismatch("incremental", name, "output differs " + where);
+        }
+        return true;
+    }
+
+    private void compare(String label, String name, byte[] output, boolean failed) {
+        Reference reference = references.get(name);
+        if (reference.failed != failed) {
+            mismatch(label, name, reference.failed ? "reference failed" : "reference compiled");
+        } else if (output == null) {
+            mismatch(label, name, "no output");
+        } else if (!Arrays.equals(reference.output, output)) {
+            mismatch(label, name, "output differs");
+        }
+    }
+
+    private boolean mismatch(String label, String name, String reason) {
+        System.out.println("MISMATCH:" + label + " " + name + JACK_SUFFIX + " " + reason);
+        ++mismatches;
+        return false;
+    }
+
+    // runs a fresh analyzer with its output silenced, and returns the names it reported as failed
+    private Set<String> run(String inName, String outArchive, String... options) {
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        PrintStream console = System.out;
+        PrintStream errors = System.err;
+        System.setOut(new PrintStream(captured));
+        System.setErr(new PrintStream(new OutputStream() {
+            public void write(int b) {
+            }
+        }));
+        JackAnalyzer analyzer = new JackAnalyzer();
+        try {
+            analyzer.parseOptions(options);
+            analyzer.translate(inName, outArchive);
+        } catch (RuntimeException e) {
+            // some of the corpus is meant to fail; which files did is compared below
+        } finally {
+            analyzer.shutdown();
+            System.setOut(console);
+            System.setErr(errors);
+        }
+        Set<String> failed = new HashSet<String>();
+        for (String line:new String(captured.toByteArray(), UTF8).split(JackAnalyzer.LINE_END)) {
+            if (line.startsWith(FAILED)) {
+                failed.add(FilenameUtils.getBaseName(StringUtils.substringAfter(line, FAILED).trim()));
+            }
+        }
+        return failed;
+    }
+
+    private final static String[] TIMED_PATHS = {"plain", "split", "archive", "incremental"};
+
+    private void checkThroughput(File baselineFile, boolean record, double tolerance) throws Exception {
+        if (record) {
+            Properties measured = new Properties();
+            for (int i = 0; i < CORPUS_KEYS.length; ++i) {
+                measured.setProperty(CORPUS_KEYS[i], describeCorpus()[i]);
+            }
+            for (String path:TIMED_PATHS) {
+                measured.setProperty(path, format(measure(path)));
+            }
+            OutputStream out = new FileOutputStream(baselineFile);
+            try {
+                measured.store(out, "EquivalenceCheck throughput: MB/s of source, edits/s for incremental");
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            System.out.println("RECORDED:" + baselineFile.getPath() + " " + measured);
+            return;
+        }
+
+        Properties baseline = new Properties();
+        FileInputStream in = new FileInputStream(baselineFile);
+        try {
+            baseline.load(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        // numbers from another corpus say nothing about this one
+        for (int i = 0; i < CORPUS_KEYS.length; ++i) {
+            if (!describeCorpus()[i].equals(baseline.getProperty(CORPUS_KEYS[i], ""))) {
+                throw new IllegalArgumentException("baseline was recorded with " + CORPUS_KEYS[i] + " "
+                        + baseline.getProperty(CORPUS_KEYS[i]) + ", not " + describeCorpus()[i] + "; re-record it with --record");
+            }
+        }
+        int slower = 0;
+        for (String path:TIMED_PATHS) {
+            double then = Double.parseDouble(baseline.getProperty(path));
+            double now = measure(path);
+            boolean ok = now >= then * (1 - tolerance / 100);
+            if (!ok) {
+                // a busy machine can slow one measurement down; a real regression survives a second one
+                now = Math.max(now, measure(path));
+                ok = now >= then * (1 - tolerance / 100);
+            }
+            System.out.println((ok ? "THROUGHPUT:" : "SLOWER:") + path + " " + format(now) + " baseline " + format(then));
+            if (!ok) {
+                ++slower;
+            }
+        }
+        if (slower > 0) {
+            throw new RuntimeException("oops: " + slower + " path(s) more than " + tolerance + "% below the baseline");
+        }
+    }
+
+    // the values for CORPUS_KEYS. a real corpus is known by its directory name only
+    private String[] describeCorpus() {
+        return new String[]{Long.toString(seed), Integer.toString(programs), Integer.toString(edits),
+                realCorpus == null ? "" : realCorpus.getName()};
+    }
+
+    private double measure(String path) {
+        File outArchive = new File(corpusArchive.getParentFile(), "out.zip");
+        if (path.equals("plain")) {
+            return megabytesPerSecond(corpusDir.getPath(), null);
+        } else if (path.equals("split")) {
+            return megabytesPerSecond(corpusDir.getPath(), null, "--split-subroutines");
+        } else if (path.equals("archive")) {
+            return megabytesPerSecond(corpusArchive.getPath(), outArchive.getPath());
+        }
+        return editsPerSecond();
+    }
+
+    // the best of the timed rounds, after a few to warm up
+    private double megabytesPerSecond(String inName, String outArchive, String... options) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + TIMED_ROUNDS; ++round) {
+            long start = System.nanoTime();
+            run(inName, outArchive, options);
+            long elapsed = System.nanoTime() - start;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return corpusBytes / (best / 1e9) / (1024 * 1024);
+    }
+
+    private double editsPerSecond() {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + TIMED_ROUNDS; ++round) {
+            Random random = new Random(seed);
+            long elapsed = 0;
+            for (String name:names) {
+                String source = sources.get(name);
+                IncrementalAnalyzer analyzer = new IncrementalAnalyzer(source);
+                for (int i = 0; i < edits; ++i) {
+                    int offset = random.nextInt(source.length() + 1);
+                    String inserted = EDITS[random.nextInt(EDITS.length)];
+                    source = source.substring(0, offset) + inserted + source.substring(offset);
+                    long start = System.nanoTime();
+                    analyzer.edit(offset, 0, inserted);
+                    elapsed += System.nanoTime() - start;
+                }
+            }
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return (double) names.size() * edits / (best / 1e9);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.2f", value);
+    }
+}
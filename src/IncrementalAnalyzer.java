@@ -0,0 +1,809 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+// keeps one class file parsed for an editor. every line keeps its own tokens, so an edit only
+// re-lexes the lines it touches, and when it stays inside one subroutine body only that
+// subroutine is compiled again. an edit anywhere else (the class header, class vars, the
+// braces between subroutines) compiles again from the last untouched subroutine before it to
+// the first one after it, as long as the braces still close there; otherwise the whole file.
+// the output matches compileClass() whenever the class compiles.
+// an edit that stays inside a subroutine costs about the size of that subroutine, not the file:
+// lines are kept in blocks, and piece line numbers and output offsets are running sums.
+public class IncrementalAnalyzer {
+
+    private final static String NEW_LINE = "\n";
+
+    private Lines lines = new Lines();
+    private Tokenizer lineTokenizer = new Tokenizer();
+
+    // the class start, one piece per subroutine or gap between subroutines, then the class end
+    private List<Piece> pieces = new ArrayList<Piece>();
+    // how far each piece has moved since it was compiled, added up over the pieces in front of it
+    private Sums lineShifts;
+    private Sums outputLengths;
+    // pieces the output stops after, and pieces that can't be compiled on their own
+    private TreeSet<Integer> stops;
+    private TreeSet<Integer> wholeClassPieces;
+
+    private static class Line {
+        private String text;
+        private List<String> tokens;
+        private List<TokenType> types;
+        private boolean endsInComment;
+
+        private Line(String text) {
+            this.text = text;
+        }
+
+        private int length() {
+            return text.length() + NEW_LINE.length();
+        }
+
+        // lexing a line again replaces its token lists, so a copy keeps the ones it had
+        private Line copy() {
+            Line copy = new Line(text);
+            copy.tokens = tokens;
+            copy.types = types;
+            copy.endsInComment = endsInComment;
+            return copy;
+        }
+    }
+
+    // the source lines in blocks that know how many chars they hold, so finding a line by
+    // offset or number, or adding or removing one, walks the block list and one block
+    private static class Lines {
+        private final static int BLOCK_SIZE = 512;
+
+        private List<List<Line>> blocks = new ArrayList<List<Line>>();
+        private List<Integer> blockLengths = new ArrayList<Integer>();
+        private int size;
+
+        private Lines() {
+            blocks.add(new ArrayList<Line>());
+            blockLengths.add(0);
+        }
+
+        private int size() {
+            return size;
+        }
+
+        private Line get(int index) {
+            for (List<Line> block:blocks) {
+                if (index < block.size()) {
+                    return block.get(index);
+                }
+                index -= block.size();
+            }
+            throw new IndexOutOfBoundsException("no line " + index);
+        }
+
+        private void add(int index, Line line) {
+            int b = blocks.size() - 1;
+            if (index < size) {
+                // a line between two blocks goes at the end of the first one
+                b = 0;
+                while (index > blocks.get(b).size()) {
+                    index -= blocks.get(b).size();
+                    ++b;
+                }
+            } else {
+                index -= size - blocks.get(b).size();
+            }
+            List<Line> block = blocks.get(b);
+            block.add(index, line);
+            blockLengths.set(b, blockLengths.get(b) + line.length());
+            ++size;
+            if (block.size() == 2 * BLOCK_SIZE) {
+                List<Line> tail = new ArrayList<Line>(block.subList(BLOCK_SIZE, block.size()));
+                block.subList(BLOCK_SIZE, block.size()).clear();
+                int tailLength = 0;
+                for (Line moved:tail) {
+                    tailLength += moved.length();
+                }
+                blocks.add(b + 1, tail);
+                blockLengths.set(b, blockLengths.get(b) - tailLength);
+                blockLengths.add(b + 1, tailLength);
+            }
+        }
+
+        private void remove(int index) {
+            int b = 0;
+            while (index >= blocks.get(b).size()) {
+                index -= blocks.get(b).size();
+                ++b;
+            }
+            Line line = blocks.get(b).remove(index);
+            blockLengths.set(b, blockLengths.get(b) - line.length());
+            --size;
+            if (blocks.get(b).isEmpty() && blocks.size() > 1) {
+                blocks.remove(b);
+                blockLengths.remove(b);
+            }
+        }
+
+        // lines from first to last, walking the block list once
+        private List<Line> range(int first, int last) {
+            List<Line> range = new ArrayList<Line>();
+            int index = 0;
+            for (List<Line> block:blocks) {
+                if (index + block.size() > first) {
+                    int from = Math.max(first - index, 0);
+                    int to = Math.min(last - index + 1, block.size());
+                    range.addAll(block.subList(from, to));
+                }
+                index += block.size();
+                if (index > last) {
+                    break;
+                }
+            }
+            return range;
+        }
+
+        // the line holding this offset. a newline belongs to the line it ends
+        private int indexAt(int offset) {
+            int index = 0;
+            int start = 0;
+            for (int b = 0; b < blocks.size(); ++b) {
+                if (offset < start + blockLengths.get(b)) {
+                    for (Line line:blocks.get(b)) {
+                        if (offset < start + line.length()) {
+                            return index;
+                        }
+                        start += line.length();
+                        ++index;
+                    }
+                }
+                start += blockLengths.get(b);
+                index += blocks.get(b).size();
+            }
+            throw new IllegalArgumentException("offset past end of source: " + offset);
+        }
+
+        private int offsetOf(int index) {
+            int offset = 0;
+            for (int b = 0; b < blocks.size(); ++b) {
+                List<Line> block = blocks.get(b);
+                if (index < block.size()) {
+                    for (int i = 0; i < index; ++i) {
+                        offset += block.get(i).length();
+                    }
+                    return offset;
+                }
+                offset += blockLengths.get(b);
+                index -= block.size();
+            }
+            throw new IndexOutOfBoundsException("no line " + index);
+        }
+    }
+
+    // running sums over piece numbers (a fenwick tree)
+    private static class Sums {
+        private int[] tree;
+
+        private Sums(int size) {
+            tree = new int[size + 1];
+        }
+
+        private void add(int index, int delta) {
+            for (int i = index + 1; i < tree.length; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        // sum of the first count values
+        private int sum(int count) {
+            int sum = 0;
+            for (int i = count; i > 0; i -= i & -i) {
+                sum += tree[i];
+            }
+            return sum;
+        }
+    }
+
+    // the tokens from one line and token up to, not including, another, and where each one came from
+    private static class Slice {
+        private List<String> tokens = new ArrayList<String>();
+        private List<TokenType> types = new ArrayList<TokenType>();
+        private int[] lines;
+        private int[] lineTokens;
+    }
+
+    private static class Piece {
+        private int index;
+        private byte[] output;
+        private RuntimeException error;
+        // compileClass() stops after this piece even though it compiled
+        private boolean closesClass;
+        // compiled on its own it ran out of tokens or stopped early, where compileClass() would
+        // have carried on into the next piece. only a whole-file compile gives the same answer
+        private boolean needsWholeClass;
+        // the tokens between two subroutines. they have lines so the pieces stay sorted by
+        // line, and are only ever compiled again along with the subroutines either side
+        private boolean gap;
+        // line and token-within-line of the first and last token, as of the last time the lines
+        // in front moved. lineShifts has the rest. not kept for the class start and end, or
+        // the token-within-line for gaps
+        private int startLine;
+        private int startToken;
+        private int endLine;
+        private int endToken;
+
+        private boolean isStop() {
+            return error != null || closesClass || needsWholeClass;
+        }
+    }
+
+    // what an edit did: the source lines that were lexed again, and the slice of the
+    // output that was replaced
+    public static class Change {
+        private int firstLine;
+        private int lastLine;
+        private int offset;
+        private int removedLength;
+        private byte[] inserted;
+
+        public int getFirstLine() {
+            return firstLine;
+        }
+
+        public int getLastLine() {
+            return lastLine;
+        }
+
+        public int getOffset() {
+            return offset;
+        }
+
+        public int getRemovedLength() {
+            return removedLength;
+        }
+
+        public byte[] getInserted() {
+            return inserted;
+        }
+    }
+
+    public IncrementalAnalyzer(String source) {
+        boolean insideComment = false;
+        for (String text:source.split(NEW_LINE, -1)) {
+            Line line = new Line(text);
+            lines.add(lines.size(), line);
+            insideComment = lexLine(line, insideComment);
+        }
+        rebuild();
+    }
+
+    public Change edit(int offset, int removedLength, String insertedText) {
+        int firstLine = lines.indexAt(offset);
+        int firstColumn = offset - lines.offsetOf(firstLine);
+        int lastLine = lines.indexAt(offset + removedLength);
+        int lastColumn = offset + removedLength - lines.offsetOf(lastLine);
+
+        String edited = lines.get(firstLine).text.substring(0, firstColumn) + insertedText + lines.get(lastLine).text.substring(lastColumn);
+        String[] newLines = edited.split(NEW_LINE, -1);
+        int lineDelta = newLines.length - (lastLine - firstLine + 1);
+
+        Piece subroutine = findSubroutine(firstLine, lastLine);
+        int startLine = subroutine == null ? 0 : getStartLine(subroutine);
+        int endLine = subroutine == null ? 0 : getEndLine(subroutine);
+        Line oldStart = subroutine == null ? null : lines.get(startLine).copy();
+        Line oldEnd = subroutine == null ? null : lines.get(endLine).copy();
+        boolean oldEndsInComment = lines.get(lastLine).endsInComment;
+
+        for (int i = lastLine; i >= firstLine; --i) {
+            lines.remove(i);
+        }
+        boolean insideComment = firstLine > 0 && lines.get(firstLine - 1).endsInComment;
+        for (int i = 0; i < newLines.length; ++i) {
+            Line line = new Line(newLines[i]);
+            lines.add(firstLine + i, line);
+            insideComment = lexLine(line, insideComment);
+        }
+        // a comment opened or closed here changes how the following lines lex, until the state
+        // lines up again. each line still holds its old state until it is lexed again
+        int changedLine = firstLine + newLines.length - 1;
+        while (changedLine + 1 < lines.size() && insideComment != oldEndsInComment) {
+            ++changedLine;
+            Line line = lines.get(changedLine);
+            oldEndsInComment = line.endsInComment;
+            insideComment = lexLine(line, insideComment);
+        }
+
+        Change change = new Change();
+        change.firstLine = firstLine;
+        change.lastLine = changedLine;
+        if (subroutine != null && changedLine - lineDelta <= endLine
+                && reparseSubroutine(subroutine, startLine, endLine, oldStart, oldEnd, lineDelta, change)) {
+            if (lineDelta != 0 && subroutine.index + 1 < pieces.size()) {
+                lineShifts.add(subroutine.index + 1, lineDelta);
+            }
+            return change;
+        }
+
+        int oldLength = getOutputLength(pieces.size());
+        if (reparseBetweenSubroutines(firstLine, changedLine, lineDelta, change)) {
+            return change;
+        }
+
+        change.offset = 0;
+        change.removedLength = oldLength;
+        rebuild();
+        change.inserted = getOutput();
+        return change;
+    }
+
+    public byte[] getOutput() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i <= getLastVisiblePiece(); ++i) {
+            out.write(pieces.get(i).output, 0, pieces.get(i).output.length);
+        }
+        return out.toByteArray();
+    }
+
+    // the first thing that failed to compile, or null. the output stops right after it
+    public RuntimeException getError() {
+        return pieces.get(getLastVisiblePiece()).error;
+    }
+
+    public String getSource() {
+        StringBuilder source = new StringBuilder();
+        for (List<Line> block:lines.blocks) {
+            for (Line line:block) {
+                source.append(line.text).append(NEW_LINE);
+            }
+        }
+        source.setLength(source.length() - NEW_LINE.length());
+        return source.toString();
+    }
+
+    // returns whether the next line starts inside a multiline comment
+    private boolean lexLine(Line line, boolean insideComment) {
+        Tokenizer tokenizer = lineTokenizer;
+        tokenizer.reset(line.text, insideComment);
+        line.tokens = new ArrayList<String>();
+        line.types = new ArrayList<TokenType>();
+        while (tokenizer.hasMoreTokens()) {
+            tokenizer.advance();
+            line.tokens.add(tokenizer.getCurrentToken());
+            line.types.add(tokenizer.tokenType());
+        }
+        line.endsInComment = tokenizer.isInsideMultilineComment();
+        return line.endsInComment;
+    }
+
+    private int getStartLine(Piece piece) {
+        return piece.startLine + lineShifts.sum(piece.index + 1);
+    }
+
+    private int getEndLine(Piece piece) {
+        return piece.endLine + lineShifts.sum(piece.index + 1);
+    }
+
+    // the one subroutine holding all of these lines, or null. pieces are sorted by start line,
+    // so it is the last one starting at or before the first line
+    private Piece findSubroutine(int firstLine, int lastLine) {
+        int low = 1;
+        int high = pieces.size() - 2;
+        Piece found = null;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getStartLine(pieces.get(middle)) <= firstLine) {
+                found = pieces.get(middle);
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found == null || found.gap || lastLine > getEndLine(found)) {
+            return null;
+        }
+        return found;
+    }
+
+    // compiles the subroutine again if the edit left its boundaries where they were,
+    // and fills in the output side of the change. false means the structure moved.
+    // oldStart and oldEnd are the subroutine's first and last lines as they were before the edit
+    private boolean reparseSubroutine(Piece subroutine, int startLine, int oldEndLine, Line oldStart,
+                                      Line oldEnd, int lineDelta, Change change) {
+        int endLine = oldEndLine + lineDelta;
+        Line start = lines.get(startLine);
+        Line end = lines.get(endLine);
+        int trailing = oldEnd.tokens.size() - subroutine.endToken - 1;
+        int endToken = end.tokens.size() - trailing - 1;
+        // a token that reads the same can still have changed type, like } turned into "}"
+        if (start.tokens.size() <= subroutine.startToken
+                || !sameTokens(start, 0, oldStart, 0, subroutine.startToken + 1)
+                || endToken < 0
+                || !sameTokens(end, endToken + 1, oldEnd, subroutine.endToken + 1, trailing)
+                || (endLine == startLine && endToken <= subroutine.startToken)) {
+            return false;
+        }
+
+        List<String> tokens = new ArrayList<String>();
+        List<TokenType> types = new ArrayList<TokenType>();
+        for (int i = startLine; i <= endLine; ++i) {
+            Line line = lines.get(i);
+            int from = i == startLine ? subroutine.startToken : 0;
+            int to = i == endLine ? endToken + 1 : line.tokens.size();
+            tokens.addAll(line.tokens.subList(from, to));
+            types.addAll(line.types.subList(from, to));
+        }
+        // the braces have to close exactly on the last token, or a subroutine was split or merged
+        int depth = 0;
+        for (int i = 0; i < tokens.size(); ++i) {
+            if (types.get(i) == TokenType.SYMBOL && tokens.get(i).equals("{")) {
+                ++depth;
+            } else if (types.get(i) == TokenType.SYMBOL && tokens.get(i).equals("}")) {
+                --depth;
+                if (depth == 0 && i != tokens.size() - 1) {
+                    return false;
+                }
+            }
+        }
+        if (depth != 0 || !tokens.get(tokens.size() - 1).equals("}")) {
+            return false;
+        }
+
+        int index = subroutine.index;
+        int oldVisible = getLastVisiblePiece();
+        int oldLength = getOutputLength(pieces.size());
+        int oldPieceLength = subroutine.output.length;
+        change.offset = getOutputLength(index);
+
+        Piece compiled = compileSubroutine(tokens, types);
+        if (compiled.needsWholeClass) {
+            return false;
+        }
+        // a piece hidden behind an earlier error could come into view and it can't stand on its own
+        if (wholeClassPieces.higher(index) != null) {
+            return false;
+        }
+        subroutine.output = compiled.output;
+        subroutine.error = compiled.error;
+        subroutine.endLine = endLine - lineShifts.sum(index + 1);
+        subroutine.endToken = endToken;
+        outputLengths.add(index, subroutine.output.length - oldPieceLength);
+        if (subroutine.isStop()) {
+            stops.add(index);
+        } else {
+            stops.remove(index);
+        }
+        int newVisible = getLastVisiblePiece();
+
+        if (index > oldVisible && index > newVisible) {
+            // hidden behind an earlier error either way
+            change.offset = oldLength;
+            change.removedLength = 0;
+            change.inserted = new byte[0];
+        } else if (oldVisible == newVisible) {
+            change.removedLength = oldPieceLength;
+            change.inserted = subroutine.output;
+        } else {
+            // this piece started or stopped failing, so everything after it disappears or comes back
+            change.removedLength = oldLength - change.offset;
+            ByteArrayOutputStream inserted = new ByteArrayOutputStream();
+            for (int i = index; i <= newVisible; ++i) {
+                inserted.write(pieces.get(i).output, 0, pieces.get(i).output.length);
+            }
+            change.inserted = inserted.toByteArray();
+        }
+        return true;
+    }
+
+    private static boolean sameTokens(Line line, int from, Line oldLine, int oldFrom, int count) {
+        return line.tokens.subList(from, from + count).equals(oldLine.tokens.subList(oldFrom, oldFrom + count))
+                && line.types.subList(from, from + count).equals(oldLine.types.subList(oldFrom, oldFrom + count));
+    }
+
+    // compiles again everything between the last subroutine that ends before the edited lines
+    // and the first one that starts after them, as long as the braces are back between
+    // subroutines by then. firstLine and changedLine are the lexed lines as they are now; the
+    // pieces still have the line numbers from before the edit. false means the whole file
+    private boolean reparseBetweenSubroutines(int firstLine, int changedLine, int lineDelta, Change change) {
+        if (pieces.size() == 1) {
+            return false;
+        }
+        Piece before = findSubroutineBefore(firstLine);
+        Piece after = findSubroutineAfter(changedLine - lineDelta);
+        int first = before == null ? 0 : before.index + 1;
+        int last = after == null ? pieces.size() - 1 : after.index - 1;
+
+        // a following subroutine's keyword comes too, since the class start ends on it
+        int toLine = after == null ? lines.size() - 1 : getStartLine(after) + lineDelta;
+        Slice slice = slice(before == null ? 0 : getEndLine(before), before == null ? 0 : before.endToken + 1,
+                toLine, after == null ? lines.get(toLine).tokens.size() : after.startToken + 1);
+        int end = after == null ? slice.tokens.size() : slice.tokens.size() - 1;
+        int[] endDepth = new int[1];
+        List<int[]> ranges = CompilationEngine.findSubroutines(slice.tokens.subList(0, end), slice.types.subList(0, end),
+                before == null ? 0 : 1, endDepth);
+        if ((after != null && endDepth[0] != 1) || (before == null && after == null && ranges.isEmpty())) {
+            return false;
+        }
+        List<Piece> compiled = compilePieces(slice, end, ranges, before == null, after == null);
+
+        int oldVisible = getLastVisiblePiece();
+        int oldLength = getOutputLength(pieces.size());
+        change.offset = getOutputLength(first);
+        int removedLength = 0;
+        for (int i = first; i <= Math.min(last, oldVisible); ++i) {
+            removedLength += pieces.get(i).output.length;
+        }
+
+        // every piece's shift so far goes into its line numbers, since the running sums start again
+        List<Piece> spliced = new ArrayList<Piece>(pieces.size() - (last - first + 1) + compiled.size());
+        for (int i = 0; i < pieces.size(); ++i) {
+            if (i == first) {
+                spliced.addAll(compiled);
+            }
+            if (i >= first && i <= last) {
+                continue;
+            }
+            Piece piece = pieces.get(i);
+            if (i > 0 && i < pieces.size() - 1) {
+                int shift = lineShifts.sum(i + 1) + (i > last ? lineDelta : 0);
+                piece.startLine += shift;
+                piece.endLine += shift;
+            }
+            spliced.add(piece);
+        }
+        int shift = compiled.size() - (last - first + 1);
+        pieces = spliced;
+        indexPieces();
+        int newVisible = getLastVisiblePiece();
+        if (pieces.get(newVisible).needsWholeClass) {
+            return false;
+        }
+
+        int newLast = first + compiled.size() - 1;
+        ByteArrayOutputStream inserted = new ByteArrayOutputStream();
+        if (oldVisible > last ? newVisible == oldVisible + shift : newVisible <= newLast) {
+            // whatever comes after is shown, or hidden, the same as before
+            change.removedLength = removedLength;
+            newVisible = Math.min(newVisible, newLast);
+        } else {
+            // a piece in here started or stopped failing, so everything after it disappears or comes back
+            change.removedLength = oldLength - change.offset;
+        }
+        for (int i = first; i <= newVisible; ++i) {
+            inserted.write(pieces.get(i).output, 0, pieces.get(i).output.length);
+        }
+        change.inserted = inserted.toByteArray();
+        return true;
+    }
+
+    // the last subroutine ending before this line, or null. end lines only go up piece by piece
+    private Piece findSubroutineBefore(int line) {
+        int low = 1;
+        int high = pieces.size() - 2;
+        int found = 0;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getEndLine(pieces.get(middle)) < line) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        while (found > 0 && pieces.get(found).gap) {
+            --found;
+        }
+        return found == 0 ? null : pieces.get(found);
+    }
+
+    // the first subroutine starting after this line, or null
+    private Piece findSubroutineAfter(int line) {
+        int low = 1;
+        int high = pieces.size() - 2;
+        int found = pieces.size() - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (getStartLine(pieces.get(middle)) > line) {
+                found = middle;
+                high = middle - 1;
+            } else {
+                low = middle + 1;
+            }
+        }
+        while (found < pieces.size() - 1 && pieces.get(found).gap) {
+            ++found;
+        }
+        return found == pieces.size() - 1 ? null : pieces.get(found);
+    }
+
+    private void rebuild() {
+        int lastLine = lines.size() - 1;
+        Slice slice = slice(0, 0, lastLine, lines.get(lastLine).tokens.size());
+        List<int[]> ranges = CompilationEngine.findSubroutines(slice.tokens, slice.types);
+        if (ranges.isEmpty()) {
+            pieces = new ArrayList<Piece>();
+            pieces.add(compileWholeClass(slice.tokens, slice.types));
+            indexPieces();
+            return;
+        }
+
+        pieces = compilePieces(slice, slice.tokens.size(), ranges, true, true);
+        indexPieces();
+
+        if (pieces.get(getLastVisiblePiece()).needsWholeClass) {
+            pieces = new ArrayList<Piece>();
+            pieces.add(compileWholeClass(slice.tokens, slice.types));
+            indexPieces();
+        }
+    }
+
+    private Slice slice(int fromLine, int fromToken, int toLine, int toToken) {
+        List<Line> range = lines.range(fromLine, toLine);
+        Slice slice = new Slice();
+        int count = 0;
+        for (int i = 0; i < range.size(); ++i) {
+            int from = i == 0 ? fromToken : 0;
+            int to = i == range.size() - 1 ? toToken : range.get(i).tokens.size();
+            count += Math.max(to - from, 0);
+        }
+        slice.lines = new int[count];
+        slice.lineTokens = new int[count];
+        int next = 0;
+        for (int i = 0; i < range.size(); ++i) {
+            Line line = range.get(i);
+            int from = i == 0 ? fromToken : 0;
+            int to = i == range.size() - 1 ? toToken : line.tokens.size();
+            for (int t = from; t < to; ++t) {
+                slice.tokens.add(line.tokens.get(t));
+                slice.types.add(line.types.get(t));
+                slice.lines[next] = fromLine + i;
+                slice.lineTokens[next] = t;
+                ++next;
+            }
+        }
+        return slice;
+    }
+
+    // the pieces for the subroutine ranges found in a slice, up to the end token, with a gap
+    // piece for anything between them. a slice from the top starts with the class start, and
+    // when it doesn't run to the end of the file the token at end is the next subroutine's keyword
+    private List<Piece> compilePieces(Slice slice, int end, List<int[]> ranges, boolean classStart, boolean classEnd) {
+        List<String> tokens = slice.tokens;
+        List<TokenType> types = slice.types;
+        List<Piece> compiled = new ArrayList<Piece>();
+        int previousEnd = -1;
+        if (classStart) {
+            int firstStart = ranges.isEmpty() ? end : ranges.get(0)[0];
+            compiled.add(compileClassStart(tokens.subList(0, firstStart + 1), types.subList(0, firstStart + 1)));
+            previousEnd = firstStart - 1;
+        }
+        for (int[] range:ranges) {
+            int start = range[0];
+            if (previousEnd + 1 != start) {
+                compiled.add(compileGap(slice, previousEnd + 1, start));
+            }
+            Piece piece = compileSubroutine(tokens.subList(start, range[1] + 1), types.subList(start, range[1] + 1));
+            piece.startLine = slice.lines[start];
+            piece.startToken = slice.lineTokens[start];
+            piece.endLine = slice.lines[range[1]];
+            piece.endToken = slice.lineTokens[range[1]];
+            compiled.add(piece);
+            previousEnd = range[1];
+        }
+        if (classEnd) {
+            compiled.add(compileClassEnd(tokens.subList(previousEnd + 1, end), types.subList(previousEnd + 1, end)));
+        } else if (previousEnd + 1 != end) {
+            compiled.add(compileGap(slice, previousEnd + 1, end));
+        }
+        return compiled;
+    }
+
+    private Piece compileGap(Slice slice, int from, int to) {
+        Piece piece = compileClassEnd(slice.tokens.subList(from, to), slice.types.subList(from, to));
+        piece.gap = true;
+        piece.startLine = slice.lines[from];
+        piece.endLine = slice.lines[to - 1];
+        return piece;
+    }
+
+    private void indexPieces() {
+        lineShifts = new Sums(pieces.size());
+        outputLengths = new Sums(pieces.size());
+        stops = new TreeSet<Integer>();
+        wholeClassPieces = new TreeSet<Integer>();
+        for (int i = 0; i < pieces.size(); ++i) {
+            Piece piece = pieces.get(i);
+            piece.index = i;
+            outputLengths.add(i, piece.output.length);
+            if (piece.isStop()) {
+                stops.add(i);
+            }
+            if (piece.needsWholeClass) {
+                wholeClassPieces.add(i);
+            }
+        }
+    }
+
+    private Piece compileWholeClass(List<String> tokens, List<TokenType> types) {
+        Piece piece = new Piece();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            new CompilationEngine(new Tokenizer(tokens, types), buffer).compileClass();
+        } catch (RuntimeException e) {
+            piece.error = e;
+        }
+        piece.output = buffer.toByteArray();
+        return piece;
+    }
+
+    // everything up to and including the first subroutine keyword
+    private Piece compileClassStart(List<String> tokens, List<TokenType> types) {
+        Piece piece = new Piece();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Tokenizer tokenizer = new Tokenizer(tokens, types);
+        try {
+            CompilationEngine engine = new CompilationEngine(tokenizer, buffer);
+            String token = engine.compileClassStart();
+            // stopped short of the first subroutine the brace matching found
+            if (tokenizer.hasMoreTokens()) {
+                if (CompilationEngine.isSubroutineKeyword(token)) {
+                    // compileClass() carries on with this one, which only a whole-file compile can do
+                    piece.needsWholeClass = true;
+                } else {
+                    // compileClass() would end the class here
+                    engine.compileClassEnd();
+                    piece.closesClass = true;
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            piece.needsWholeClass = true;
+        } catch (RuntimeException e) {
+            piece.error = e;
+        }
+        piece.output = buffer.toByteArray();
+        return piece;
+    }
+
+    // everything after a subroutine's closing brace that isn't another subroutine
+    private Piece compileClassEnd(List<String> tokens, List<TokenType> types) {
+        Piece piece = new Piece();
+        // compileClass() only ends the class on a closing brace. anything else, like a subroutine
+        // the brace matching missed, is carried on with, which only a whole-file compile can do
+        if (tokens.isEmpty() || types.get(0) != TokenType.SYMBOL || !tokens.get(0).equals("}")) {
+            piece.needsWholeClass = true;
+            piece.output = new byte[0];
+            return piece;
+        }
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        Tokenizer tokenizer = new Tokenizer(tokens, types);
+        try {
+            tokenizer.advance();
+            new CompilationEngine(tokenizer, buffer).compileClassEnd();
+            piece.closesClass = true;
+        } catch (RuntimeException e) {
+            piece.error = e;
+        }
+        piece.output = buffer.toByteArray();
+        return piece;
+    }
+
+    private Piece compileSubroutine(List<String> tokens, List<TokenType> types) {
+        Piece piece = new Piece();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            piece.needsWholeClass = !CompilationEngine.compileSubroutine(tokens, types, buffer, null);
+        } catch (IndexOutOfBoundsException e) {
+            piece.needsWholeClass = true;
+        } catch (RuntimeException e) {
+            piece.error = e;
+        }
+        piece.output = buffer.toByteArray();
+        return piece;
+    }
+
+    private int getLastVisiblePiece() {
+        return stops.isEmpty() ? pieces.size() - 1 : stops.first();
+    }
+
+    // length of the visible output in front of the given piece
+    private int getOutputLength(int piece) {
+        return outputLengths.sum(Math.min(piece, getLastVisiblePiece() + 1));
+    }
+}
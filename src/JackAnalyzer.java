@@ -3,14 +3,32 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class JackAnalyzer {
 
@@ -19,14 +37,146 @@ public class JackAnalyzer {
     public final static String LINE_END = "\n";
     public final static String COMMENT = "//";
 
+    private final static String JACK_EXTENSION = "jack";
+    private final static String[] ARCHIVE_EXTENSIONS = {"zip", "jar"};
+    private final static String SPLIT_OPTION = "--split-subroutines";
+    private final static String MAX_MILLIS_OPTION = "--max-millis=";
+    private final static String MAX_TOKENS_OPTION = "--max-tokens=";
+    private final static String MAX_DEPTH_OPTION = "--max-depth=";
+    private final static String MAX_OUTPUT_OPTION = "--max-output-bytes=";
+
+    // only set when SPLIT_OPTION is given; kept apart from the per-file pool so they can't starve each other
+    private ExecutorService subroutineExecutor;
+
+    // per-file limits, 0 means no limit
+    private long maxMillis;
+    private long maxTokens;
+    private int maxDepth;
+    private long maxOutputBytes;
+
     private final static int INITIAL_STACK_POINTER = 256;
 
+    // a worker's output buffer is dropped after a file bigger than this, so one huge file doesn't pin the memory
+    final static int MAX_POOLED_BUFFER = 4 * 1024 * 1024;
+
+    private final static int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    // one tokenizer, engine and output buffer per thread, reset for every file rather than rebuilt.
+    // files are written through output as they compile; an archive entry is collected in buffer
+    private static class Worker {
+        private final Tokenizer tokenizer = new Tokenizer();
+        private final CompilationEngine engine = new CompilationEngine();
+        private final OutputBuffer output = new OutputBuffer();
+        private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        private void release() {
+            output.reset(null);
+            if (buffer.size() > MAX_POOLED_BUFFER) {
+                buffer = new ByteArrayOutputStream();
+            } else {
+                buffer.reset();
+            }
+        }
+    }
+
+    // like a BufferedOutputStream, but it can be pointed at the next file so the buffer is only allocated once
+    private static class OutputBuffer extends OutputStream {
+        private final byte[] bytes = new byte[OUTPUT_BUFFER_SIZE];
+        private int count;
+        private OutputStream target;
+
+        private void reset(OutputStream target) {
+            this.target = target;
+            count = 0;
+        }
+
+        public void write(int b) throws IOException {
+            if (count == bytes.length) {
+                flushBuffer();
+            }
+            bytes[count++] = (byte) b;
+        }
+
+        public void write(byte[] b, int offset, int length) throws IOException {
+            if (length > bytes.length - count) {
+                flushBuffer();
+                if (length >= bytes.length) {
+                    target.write(b, offset, length);
+                    return;
+                }
+            }
+            System.arraycopy(b, offset, bytes, count, length);
+            count += length;
+        }
+
+        public void flush() throws IOException {
+            flushBuffer();
+            target.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (count > 0) {
+                target.write(bytes, 0, count);
+                count = 0;
+            }
+        }
+    }
+
+    // what analyzing one archive entry gave: its output, and what it failed with if it did
+    private static class EntryResult {
+        private byte[] xml;
+        private Throwable failure;
+    }
+
+    private final ThreadLocal<Worker> workers = new ThreadLocal<Worker>() {
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
     public static void main(String[] args) {
         JackAnalyzer main = new JackAnalyzer();
-        main.translate(args[0]);
+        List<String> names = main.parseOptions(args);
+        try {
+            main.translate(names.get(0), names.size() > 1 ? names.get(1) : null);
+        } finally {
+            main.shutdown();
+        }
+    }
+
+    // sets up the options and returns the other arguments, the input and the optional output archive
+    List<String> parseOptions(String[] args) {
+        List<String> names = new ArrayList<String>();
+        for (String arg:args) {
+            if (arg.equals(SPLIT_OPTION)) {
+                subroutineExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+            } else if (arg.startsWith(MAX_MILLIS_OPTION)) {
+                maxMillis = Long.parseLong(StringUtils.substringAfter(arg, "="));
+            } else if (arg.startsWith(MAX_TOKENS_OPTION)) {
+                maxTokens = Long.parseLong(StringUtils.substringAfter(arg, "="));
+            } else if (arg.startsWith(MAX_DEPTH_OPTION)) {
+                maxDepth = Integer.parseInt(StringUtils.substringAfter(arg, "="));
+            } else if (arg.startsWith(MAX_OUTPUT_OPTION)) {
+                maxOutputBytes = Long.parseLong(StringUtils.substringAfter(arg, "="));
+            } else {
+                names.add(arg);
+            }
+        }
+        return names;
     }
 
-    private void translate(String inName) {
+    void shutdown() {
+        if (subroutineExecutor != null) {
+            subroutineExecutor.shutdownNow();
+        }
+    }
+
+    void translate(String inName, String outArchive) {
+        if (FilenameUtils.isExtension(inName, ARCHIVE_EXTENSIONS)) {
+            translateArchive(inName, outArchive);
+            return;
+        }
+
         String baseName = FilenameUtils.getBaseName(inName);
         String inDir = null;
         String outDir = null;
@@ -38,36 +188,169 @@ public class JackAnalyzer {
         Collection<File> allFiles;
         if (isDirectory) {
             inDir = inName;
-            allFiles = FileUtils.listFiles(arg, new String[]{"jack"}, false);
+            allFiles = FileUtils.listFiles(arg, new String[]{JACK_EXTENSION}, false);
         } else {
             inDir = FilenameUtils.getFullPath(inName);
             allFiles = Collections.singletonList(arg);
         }
         outDir = inDir;
-        FileOutputStream outputStream = null;
+        int failures = 0;
+        for (File file:allFiles) {
+            String outFullPath = FilenameUtils.concat(outDir, FilenameUtils.getBaseName(file.getName()) + SUFFIX);
+            if (!doOneFile(file, outFullPath)) {
+                ++failures;
+            }
+        }
+        if (failures > 0) {
+            throw new RuntimeException("oops: " + failures + " file(s) failed");
+        }
+
+    }
+
+    // reads the .jack entries straight out of the archive and analyzes them in parallel.
+    // output goes into outArchive if one is given, otherwise next to the archive.
+    private void translateArchive(String inName, String outArchive) {
+        String outDir = FilenameUtils.getFullPath(inName);
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        ZipInputStream zipIn = null;
+        ZipOutputStream zipOut = null;
+        int failures = 0;
         try {
-            for (File file:allFiles) {
-                String outFullPath = FilenameUtils.concat(outDir, FilenameUtils.getBaseName(file.getName()) + SUFFIX);
-                doOneFile(file, outFullPath);
+            zipIn = new ZipInputStream(new BufferedInputStream(new FileInputStream(inName)));
+            if (outArchive != null) {
+                zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(outArchive)));
+            }
+            // results are written in entry order as soon as they're done, with only a few entries
+            // in flight, so a big archive never sits in memory all at once
+            int maxInFlight = 2 * Runtime.getRuntime().availableProcessors();
+            Deque<String> entryNames = new ArrayDeque<String>();
+            Deque<String> outNames = new ArrayDeque<String>();
+            Deque<Future<EntryResult>> results = new ArrayDeque<Future<EntryResult>>();
+            Set<String> seenNames = new HashSet<String>();
+            ZipEntry entry;
+            while ((entry = zipIn.getNextEntry()) != null) {
+                String outName = getOutputEntryName(entry);
+                if (outName == null) {
+                    continue;
+                }
+                if (!seenNames.add(outName)) {
+                    System.out.println("FAILED:" + entry.getName() + " duplicate of " + outName);
+                    ++failures;
+                    continue;
+                }
+                final byte[] source = IOUtils.toByteArray(zipIn);
+                entryNames.add(entry.getName());
+                outNames.add(outName);
+                results.add(executor.submit(new Callable<EntryResult>() {
+                    public EntryResult call() {
+                        Worker worker = workers.get();
+                        EntryResult result = new EntryResult();
+                        try {
+                            Budget budget = newBudget();
+                            worker.tokenizer.reset(new ByteArrayInputStream(source), budget);
+                            analyze(worker, budget, worker.buffer);
+                        } catch (Exception e) {
+                            result.failure = e;
+                        } catch (StackOverflowError e) {
+                            result.failure = e;
+                        } finally {
+                            result.xml = worker.buffer.toByteArray();
+                            worker.release();
+                        }
+                        return result;
+                    }
+                }));
+                if (results.size() >= maxInFlight) {
+                    if (!writeResult(entryNames.poll(), outNames.poll(), results.poll(), zipOut, outDir)) {
+                        ++failures;
+                    }
+                }
+            }
+            while (!results.isEmpty()) {
+                if (!writeResult(entryNames.poll(), outNames.poll(), results.poll(), zipOut, outDir)) {
+                    ++failures;
+                }
             }
 
         } catch (Exception e) {
             e.printStackTrace();
             throw new RuntimeException("oops");
         } finally {
-            IOUtils.closeQuietly(outputStream);
+            executor.shutdownNow();
+            IOUtils.closeQuietly(zipIn);
+            IOUtils.closeQuietly(zipOut);
+        }
+        if (failures > 0) {
+            throw new RuntimeException("oops: " + failures + " file(s) failed");
+        }
+    }
+
+    // waits for one entry and writes it into the output archive, or next to the input one.
+    // a failed entry still gets whatever was compiled before the failure, as a failed file does
+    private boolean writeResult(String entryName, String outName, Future<EntryResult> future, ZipOutputStream zipOut, String outDir) throws Exception {
+        EntryResult result;
+        try {
+            result = future.get();
+        } catch (ExecutionException e) {
+            reportFailure(entryName, e.getCause());
+            return false;
+        }
+        if (zipOut != null) {
+            zipOut.putNextEntry(new ZipEntry(outName));
+            zipOut.write(result.xml);
+            zipOut.closeEntry();
+        } else {
+            FileUtils.writeByteArrayToFile(new File(FilenameUtils.concat(outDir, outName)), result.xml);
+        }
+        if (result.failure != null) {
+            reportFailure(entryName, result.failure);
+            return false;
+        }
+        return true;
+    }
+
+    // null means skip the entry: directories, non-jack files, and names that would escape the output dir
+    private String getOutputEntryName(ZipEntry entry) {
+        if (entry.isDirectory() || !FilenameUtils.isExtension(entry.getName(), JACK_EXTENSION)) {
+            return null;
         }
+        String name = FilenameUtils.normalize(entry.getName(), true);
+        if (name == null || FilenameUtils.getPrefixLength(name) != 0) {
+            System.out.println("SKIPPING:" + entry.getName());
+            return null;
+        }
+        return FilenameUtils.removeExtension(name) + SUFFIX;
+    }
 
+    private Budget newBudget() {
+        return new Budget(maxMillis, maxTokens, maxDepth, maxOutputBytes);
+    }
+
+    // the worker's tokenizer has already been reset to the file's source, under the same budget
+    private void analyze(Worker worker, Budget budget, OutputStream out) {
+        CompilationEngine engine = worker.engine;
+        engine.reset(worker.tokenizer, out);
+        engine.setBudget(budget);
+        if (subroutineExecutor != null) {
+            engine.compileClass(subroutineExecutor);
+        } else {
+            engine.compileClass();
+        }
     }
 
-    private void doOneFile(File file, String outPath) {
+    // false if the file failed or was cancelled; that's reported and the batch carries on
+    private boolean doOneFile(File file, String outPath) {
         OutputStream out = null;
+        Worker worker = workers.get();
         try {
             out = new FileOutputStream(outPath);
+            worker.output.reset(out);
+            Budget budget = newBudget();
 
 
 
-            Tokenizer tokenizer = new Tokenizer(file);
+            Tokenizer tokenizer = worker.tokenizer;
+            tokenizer.reset(file, budget);
             /*
             // writeLine(out,  "<tokens>");
 
@@ -82,12 +365,44 @@ public class JackAnalyzer {
             writeLine(out,  "</tokens>");
             */
 
-            CompilationEngine engine = new CompilationEngine(tokenizer, out);
-            engine.compileClass();
+            analyze(worker, budget, worker.output);
+            worker.output.flush();
+            return true;
+
+        } catch (Exception e) {
+            writePartialOutput(worker, out);
+            reportFailure(file.getName(), e);
+            return false;
+        } catch (StackOverflowError e) {
+            writePartialOutput(worker, out);
+            reportFailure(file.getName(), e);
+            return false;
+        } finally {
+            IOUtils.closeQuietly(out);
+            worker.release();
+        }
+    }
 
+    // a failed file still gets whatever was compiled before the failure, as it did when written line by line
+    private void writePartialOutput(Worker worker, OutputStream out) {
+        if (out == null) {
+            return;
+        }
+        try {
+            worker.output.flush();
         } catch (Exception e) {
+            // already failing, the original error is the one worth reporting
+        }
+    }
+
+    private void reportFailure(String name, Throwable e) {
+        if (e instanceof BudgetExceededException) {
+            System.out.println("CANCELLED:" + name + " " + e.getMessage());
+        } else if (e instanceof StackOverflowError) {
+            System.out.println("CANCELLED:" + name + " nested too deep for the stack");
+        } else {
             e.printStackTrace();
-            throw new RuntimeException("oops");
+            System.out.println("FAILED:" + name);
         }
     }
 
@@ -0,0 +1,324 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// a seeded random Jack class for testing: class and local variables, nested statements,
+// expressions, strings and both kinds of comment, laid out with random spacing and line breaks.
+// a broken one has one token dropped or swapped, so it fails part way through.
+// identifiers are letters only and never start like a keyword, since the tokenizer splits those.
+//   java RandomJackProgram <seed> [broken]
+public class RandomJackProgram {
+
+    private final static String NEW_LINE = "\n";
+    // layout markers mixed in with the tokens, never part of the source themselves
+    private final static String BREAK = "\n";
+    private final static String INDENT = "\t+";
+    private final static String DEDENT = "\t-";
+
+    private final static String[] TYPES = {"int", "char", "boolean"};
+    private final static String[] OPERATIONS = {"+", "-", "*", "/", "&", "|", "<", ">", "="};
+    private final static String[] KEYWORD_CONSTANTS = {"true", "false", "null", "this"};
+    private final static String[] SUBROUTINE_KEYWORDS = {"constructor", "function", "method"};
+    // no keyword starts with any of these, and upper case never does
+    private final static String LOWER_START = "aghjkopquxyz";
+    private final static String LETTERS = "abcdefghijklmnopqrstuvwxyz";
+    private final static String STRING_CHARS = "abcdefghij KLMNOP,.;:!?()[]{}+-*=<>&|~";
+    private final static int MAX_DEPTH = 3;
+
+    private final Random random;
+    private final List<String> tokens = new ArrayList<String>();
+
+    private RandomJackProgram(Random random) {
+        this.random = random;
+    }
+
+    public static void main(String[] args) {
+        long seed = Long.parseLong(args[0]);
+        boolean broken = args.length > 1 && args[1].equals("broken");
+        System.out.print(generate(new Random(seed), "Main", broken));
+    }
+
+    public static String generate(Random random, String className, boolean broken) {
+        RandomJackProgram program = new RandomJackProgram(random);
+        program.generateClass(className);
+        if (broken) {
+            program.breakOneToken();
+        }
+        return program.render();
+    }
+
+    // a name that's safe as an identifier: letters only, and not the start of a keyword
+    public static String identifier(Random random, boolean upperCase) {
+        StringBuilder name = new StringBuilder();
+        if (upperCase) {
+            name.append(Character.toUpperCase(LETTERS.charAt(random.nextInt(LETTERS.length()))));
+        } else {
+            name.append(LOWER_START.charAt(random.nextInt(LOWER_START.length())));
+        }
+        int length = random.nextInt(6);
+        for (int i = 0; i < length; ++i) {
+            name.append(LETTERS.charAt(random.nextInt(LETTERS.length())));
+        }
+        return name.toString();
+    }
+
+    private void generateClass(String className) {
+        comment();
+        add("class", className, "{", INDENT, BREAK);
+        int classVars = random.nextInt(4);
+        for (int i = 0; i < classVars; ++i) {
+            add(random.nextBoolean() ? "static" : "field");
+            names();
+            add(";", BREAK);
+        }
+        int subroutines = 1 + random.nextInt(8);
+        for (int i = 0; i < subroutines; ++i) {
+            comment();
+            subroutine();
+        }
+        add(DEDENT, "}", BREAK);
+    }
+
+    private void subroutine() {
+        add(pick(SUBROUTINE_KEYWORDS));
+        add(random.nextInt(3) == 0 ? "void" : type(), identifier(random, false), "(");
+        int parameters = random.nextInt(4);
+        for (int i = 0; i < parameters; ++i) {
+            if (i > 0) {
+                add(",");
+            }
+            add(type(), identifier(random, false));
+        }
+        add(")", "{", INDENT, BREAK);
+        int vars = random.nextInt(3);
+        for (int i = 0; i < vars; ++i) {
+            add("var");
+            names();
+            add(";", BREAK);
+        }
+        statements(0);
+        add("return");
+        if (random.nextBoolean()) {
+            expression(0);
+        }
+        add(";", DEDENT, BREAK, "}", BREAK);
+    }
+
+    // a type and one or more names, for class vars and locals
+    private void names() {
+        add(type());
+        int names = 1 + random.nextInt(3);
+        for (int i = 0; i < names; ++i) {
+            if (i > 0) {
+                add(",");
+            }
+            add(identifier(random, false));
+        }
+    }
+
+    private void statements(int depth) {
+        int statements = random.nextInt(depth == 0 ? 6 : 4);
+        for (int i = 0; i < statements; ++i) {
+            if (random.nextInt(8) == 0) {
+                comment();
+            }
+            int kind = random.nextInt(depth < MAX_DEPTH ? 5 : 3);
+            if (kind == 0) {
+                add("let", identifier(random, false));
+                if (random.nextInt(4) == 0) {
+                    add("[");
+                    expression(depth + 1);
+                    add("]");
+                }
+                add("=");
+                expression(depth + 1);
+                add(";");
+            } else if (kind == 1) {
+                add("do");
+                call(depth + 1);
+                add(";");
+            } else if (kind == 2) {
+                add("return");
+                if (random.nextBoolean()) {
+                    expression(depth + 1);
+                }
+                add(";");
+            } else if (kind == 3) {
+                add("if", "(");
+                expression(depth + 1);
+                add(")");
+                block(depth + 1);
+                if (random.nextBoolean()) {
+                    add("else");
+                    block(depth + 1);
+                }
+            } else {
+                add("while", "(");
+                expression(depth + 1);
+                add(")");
+                block(depth + 1);
+            }
+            add(BREAK);
+        }
+    }
+
+    private void block(int depth) {
+        add("{", INDENT, BREAK);
+        statements(depth);
+        add(DEDENT, "}");
+    }
+
+    private void expression(int depth) {
+        term(depth);
+        int operations = depth < MAX_DEPTH ? random.nextInt(3) : 0;
+        for (int i = 0; i < operations; ++i) {
+            add(pick(OPERATIONS));
+            term(depth);
+        }
+    }
+
+    private void term(int depth) {
+        if (random.nextInt(12) == 0) {
+            add(BREAK);
+        }
+        int kind = random.nextInt(depth < MAX_DEPTH ? 9 : 4);
+        if (kind == 0) {
+            add(Integer.toString(random.nextInt(32768)));
+        } else if (kind == 1) {
+            add(string());
+        } else if (kind == 2) {
+            add(pick(KEYWORD_CONSTANTS));
+        } else if (kind == 3) {
+            add(identifier(random, false));
+        } else if (kind == 4) {
+            add(identifier(random, false), "[");
+            expression(depth + 1);
+            add("]");
+        } else if (kind == 5) {
+            call(depth + 1);
+        } else if (kind == 6) {
+            add("(");
+            expression(depth + 1);
+            add(")");
+        } else {
+            add(random.nextBoolean() ? "-" : "~");
+            term(depth + 1);
+        }
+    }
+
+    private void call(int depth) {
+        if (random.nextBoolean()) {
+            add(identifier(random, random.nextBoolean()), ".");
+        }
+        add(identifier(random, false), "(");
+        int arguments = depth < MAX_DEPTH ? random.nextInt(3) : 0;
+        for (int i = 0; i < arguments; ++i) {
+            if (i > 0) {
+                add(",");
+            }
+            expression(depth);
+        }
+        add(")");
+    }
+
+    // sometimes a comment on lines of its own; the tokenizer only knows /* */ that way
+    private void comment() {
+        int kind = random.nextInt(4);
+        if (kind == 0) {
+            add("// " + words(), BREAK);
+        } else if (kind == 1) {
+            add("/** " + words() + " */", BREAK);
+        } else if (kind == 2) {
+            add("/* " + words(), BREAK, "   " + words(), BREAK, "   " + words() + " */", BREAK);
+        }
+    }
+
+    private String words() {
+        StringBuilder words = new StringBuilder();
+        int count = 1 + random.nextInt(5);
+        for (int i = 0; i < count; ++i) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(identifier(random, random.nextInt(4) == 0));
+        }
+        return words.toString();
+    }
+
+    // no quotes, and no slashes so nothing inside looks like a comment
+    private String string() {
+        StringBuilder string = new StringBuilder("\"");
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; ++i) {
+            string.append(STRING_CHARS.charAt(random.nextInt(STRING_CHARS.length())));
+        }
+        return string.append('"').toString();
+    }
+
+    private String type() {
+        return random.nextInt(4) == 0 ? identifier(random, true) : pick(TYPES);
+    }
+
+    private String pick(String[] choices) {
+        return choices[random.nextInt(choices.length)];
+    }
+
+    private void add(String... added) {
+        for (String token:added) {
+            tokens.add(token);
+        }
+    }
+
+    private void breakOneToken() {
+        List<Integer> candidates = new ArrayList<Integer>();
+        for (int i = 0; i < tokens.size(); ++i) {
+            if (isToken(tokens.get(i))) {
+                candidates.add(i);
+            }
+        }
+        int index = candidates.get(random.nextInt(candidates.size()));
+        if (random.nextBoolean()) {
+            tokens.remove(index);
+        } else {
+            tokens.set(index, pick(new String[]{"{", "}", "(", ")", ";", "=", ".", "let", "if", "var"}));
+        }
+    }
+
+    private boolean isToken(String token) {
+        return !token.equals(BREAK) && !token.equals(INDENT) && !token.equals(DEDENT)
+                && !token.startsWith(Tokenizer.ONE_COMMENT) && !token.startsWith(Tokenizer.START_COMMENT)
+                && !token.startsWith(" ");
+    }
+
+    private String render() {
+        StringBuilder source = new StringBuilder();
+        int indent = 0;
+        String previous = null;
+        for (String token:tokens) {
+            if (token.equals(INDENT)) {
+                ++indent;
+            } else if (token.equals(DEDENT)) {
+                --indent;
+            } else if (token.equals(BREAK)) {
+                source.append(random.nextInt(10) == 0 ? "  " + NEW_LINE : NEW_LINE);
+                previous = null;
+            } else {
+                if (previous == null) {
+                    for (int i = 0; i < indent; ++i) {
+                        source.append(random.nextInt(5) == 0 ? "\t" : "    ");
+                    }
+                } else if (token.startsWith(Tokenizer.ONE_COMMENT)
+                        || (isWord(previous) && isWord(token)) || random.nextInt(3) > 0) {
+                    source.append(' ');
+                }
+                source.append(token);
+                previous = token;
+            }
+        }
+        return source.toString();
+    }
+
+    private boolean isWord(String token) {
+        return Character.isLetterOrDigit(token.charAt(0));
+    }
+}
@@ -0,0 +1,463 @@
+import org.apache.commons.io.IOUtils;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.*;
+
+// CompilationEngine as it was in the baseline, renamed and otherwise unchanged; see ReferenceTokenizer
+public class ReferenceEngine {
+
+    private InputStream input;
+    private OutputStream output;
+
+    private ReferenceTokenizer tokenizer;
+
+    private final static Set<String> typeKeywords = new HashSet<String>(Arrays.asList("int", "char", "boolean"));
+
+    private final static Set<String> statementKeywords = new HashSet<String>(Arrays.asList("if", "let", "while", "do", "return"));
+
+    private final static Set<String> operations = new HashSet<String>(Arrays.asList("+", "-", "*", "/", "&amp;", "|", "&lt;", "&gt;", "=" ));
+
+    private final static Set<String> unaryOps = new HashSet<String>(Arrays.asList("~", "-"));
+
+    private final static Set<ReferenceTokenType> simpleTerms = new HashSet<ReferenceTokenType>(Arrays.asList(ReferenceTokenType.STRING_CONSTANT, ReferenceTokenType.INTEGER_CONSTANT));
+
+    private final static Set<String> keywordConstants = new HashSet<String>(Arrays.asList("true", "false", "null", "this"));
+
+
+    public ReferenceEngine(InputStream input, OutputStream output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    public ReferenceEngine(ReferenceTokenizer tokenizer, OutputStream output) {
+        this.output = output;
+        this.tokenizer = tokenizer;
+    }
+
+    private void advanceAndWriteExpected(ReferenceTokenType type, String expected) {
+        tokenizer.advance();
+        writeExpected(type, expected);
+    }
+
+    private void writeExpected(ReferenceTokenType type, String expected) {
+        if (tokenizer.tokenType() != type) {
+            throw new IllegalArgumentException("expected token type: " + type);
+        }
+        String value = tokenizer.getCurrentToken();
+        if (expected != null && !expected.equals(value)) {
+            throw new IllegalArgumentException("expected value: " + expected);
+        }
+        writeLine(type.doTag(value));
+    }
+
+    private void beginTag(String tag) {
+        writeLine(getBegin(tag));
+    }
+
+    private void endTag(String tag) {
+        writeLine(getEnd(tag));
+    }
+
+    private String getBegin(String tag) {
+        return "<" + tag + ">";
+    }
+
+    private String getEnd(String tag) {
+        return "</" + tag + ">";
+    }
+
+
+    private void writeLine(String line) {
+        Collection<String> lines = Collections.singletonList(line);
+        try {
+            IOUtils.writeLines(lines, JackAnalyzer.LINE_END, output, JackAnalyzer.UTF8);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void compileClass() {
+        beginTag("class");
+        advanceAndWriteExpected(ReferenceTokenType.KEYWORD, "class");
+        advanceAndWriteExpected(ReferenceTokenType.IDENTIFIER, null);
+        advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "{");
+
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        while (isClassVar(token)) {
+            compileClassVariableDeclaration(token);
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+        }
+
+        while (isSubroutine(token)) {
+            compileSubroutineDeclaration(token);
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+        }
+
+        writeExpected(ReferenceTokenType.SYMBOL, "}");
+        endTag("class");
+    }
+
+    private boolean isClassVar(String token) {
+        return (token.equals("static") || token.equals("field"));
+    }
+
+    private boolean isStatement(String token) {
+        return statementKeywords.contains(token);
+    }
+
+    private boolean isSubroutine(String token) {
+        return (token.equals("constructor") || token.equals("function") || token.equals("method"));
+    }
+
+    private boolean isKeywordConstant(String token) {
+        return keywordConstants.contains(token);
+    }
+
+
+    private boolean isSimpleTerm(ReferenceTokenType type) {
+        return simpleTerms.contains(type);
+    }
+
+    private boolean isUnaryOp(String token) {
+        return unaryOps.contains(token);
+    }
+
+    private boolean isOperation(String token) {
+        return operations.contains(token);
+    }
+
+
+    public void compileClassVariableDeclaration(String keyword) {
+        beginTag("classVarDec");
+        writeLine(ReferenceTokenType.KEYWORD.doTag(keyword));
+
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        // type is int, char, boolean or className (identifier)
+        if (typeKeywords.contains(token)) {
+            writeLine(ReferenceTokenType.KEYWORD.doTag(token));
+        } else {
+            writeLine(ReferenceTokenType.IDENTIFIER.doTag(token));
+        }
+
+        while (!(token.equals(";"))) {
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+            if (token.equals(",") || token.equals(";")) {
+                writeLine(ReferenceTokenType.SYMBOL.doTag(token));
+            } else {
+                writeLine(ReferenceTokenType.IDENTIFIER.doTag(token));
+            }
+        }
+        endTag("classVarDec");
+    }
+
+    public void compileSubroutineDeclaration(String keyword) {
+        beginTag("subroutineDec");
+        writeLine(ReferenceTokenType.KEYWORD.doTag(keyword));
+
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        if (token.equals("void")) {
+            writeLine(ReferenceTokenType.KEYWORD.doTag(token));
+        } else if (typeKeywords.contains(token)) {
+            writeLine(ReferenceTokenType.KEYWORD.doTag(token));
+        } else {
+            writeLine(ReferenceTokenType.IDENTIFIER.doTag(token));
+        }
+        advanceAndWriteExpected(ReferenceTokenType.IDENTIFIER, null);
+
+        advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "(");
+        compileParameterList();
+        writeExpected(ReferenceTokenType.SYMBOL, ")");
+        compileSubroutineBody();
+
+        endTag("subroutineDec");
+    }
+
+    public void compileParameterList() {
+        beginTag("parameterList");
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        while (!(token.equals(")"))) {
+            if (token.equals(",")) {
+                writeLine(ReferenceTokenType.SYMBOL.doTag(token));
+            } else if (typeKeywords.contains(token)) {
+                writeLine(ReferenceTokenType.KEYWORD.doTag(token));
+            } else {
+                writeLine(ReferenceTokenType.IDENTIFIER.doTag(token));
+            }
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+        }
+        endTag("parameterList");
+    }
+
+    public void compileSubroutineBody() {
+        beginTag("subroutineBody");
+        advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "{");
+
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        while (token.equals("var")) {
+            compileVarDec();
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+        }
+        compileStatements(token);
+        writeExpected(ReferenceTokenType.SYMBOL, "}");
+
+        endTag("subroutineBody");
+    }
+
+    public void compileVarDec() {
+        beginTag("varDec");
+
+        writeLine(ReferenceTokenType.KEYWORD.doTag("var"));
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        // type is int, char, boolean or className (identifier)
+        if (typeKeywords.contains(token)) {
+            writeLine(ReferenceTokenType.KEYWORD.doTag(token));
+        } else {
+            writeLine(ReferenceTokenType.IDENTIFIER.doTag(token));
+        }
+
+        while (!(token.equals(";"))) {
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+            if (token.equals(",") || token.equals(";")) {
+                writeLine(ReferenceTokenType.SYMBOL.doTag(token));
+            } else {
+                writeLine(ReferenceTokenType.IDENTIFIER.doTag(token));
+            }
+        }
+
+        endTag("varDec");
+    }
+
+
+    public void compileStatements(String token) {
+        beginTag("statements");
+        boolean needAdvance = true;
+        while (isStatement(token)) {
+            if (token.equals("if")) {
+                compileIf();
+                needAdvance = false;
+            }
+            if (token.equals("let")) {
+                compileLet();
+                needAdvance = true;
+            }
+            if (token.equals("do")) {
+                compileDo();
+                needAdvance = true;
+            }
+            if (token.equals("while")) {
+                compileWhile();
+                needAdvance = false;
+            }
+            if (token.equals("return")) {
+                compileReturn();
+                needAdvance = true;
+            }
+            if (needAdvance) {
+                tokenizer.advance();
+            }
+            token = tokenizer.getCurrentToken();
+        }
+
+
+        endTag("statements");
+    }
+
+
+    public void compileIf() {
+        beginTag("ifStatement");
+        writeLine(ReferenceTokenType.KEYWORD.doTag("if"));
+        advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "(");
+        tokenizer.advance();
+        compileExpression();
+        writeExpected(ReferenceTokenType.SYMBOL, ")");
+        advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "{");
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        compileStatements(token);
+        writeExpected(ReferenceTokenType.SYMBOL, "}");
+        tokenizer.advance();
+        token = tokenizer.getCurrentToken();
+        if (token.equals("else")) {
+            writeLine(ReferenceTokenType.KEYWORD.doTag("else"));
+            advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "{");
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+            compileStatements(token);
+            writeExpected(ReferenceTokenType.SYMBOL, "}");
+            tokenizer.advance();
+        }
+        endTag("ifStatement");
+        return;
+    }
+
+    public void compileLet() {
+        beginTag("letStatement");
+        writeLine(ReferenceTokenType.KEYWORD.doTag("let"));
+        advanceAndWriteExpected(ReferenceTokenType.IDENTIFIER, null);
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        if (token.equals("[")) {
+            writeLine(ReferenceTokenType.SYMBOL.doTag("["));
+            tokenizer.advance();
+            compileExpression();
+            writeExpected(ReferenceTokenType.SYMBOL, "]");
+            tokenizer.advance();
+        }
+        writeExpected(ReferenceTokenType.SYMBOL, "=");
+        tokenizer.advance();
+        compileExpression();
+        writeExpected(ReferenceTokenType.SYMBOL, ";");
+        endTag("letStatement");
+    }
+
+    public void compileDo() {
+        beginTag("doStatement");
+        writeLine(ReferenceTokenType.KEYWORD.doTag("do"));
+
+        // subroutine name, or class or var name
+        advanceAndWriteExpected(ReferenceTokenType.IDENTIFIER, null);
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        if (token.equals(".")) {
+            writeLine(ReferenceTokenType.SYMBOL.doTag("."));
+            // subroutine name
+            advanceAndWriteExpected(ReferenceTokenType.IDENTIFIER, null);
+            tokenizer.advance();
+            token = tokenizer.getCurrentToken();
+        }
+        writeExpected(ReferenceTokenType.SYMBOL, "(");
+        compileExpressionList();
+        writeExpected(ReferenceTokenType.SYMBOL, ")");
+        advanceAndWriteExpected(ReferenceTokenType.SYMBOL, ";");
+        endTag("doStatement");
+    }
+
+    public void compileWhile() {
+        beginTag("whileStatement");
+        writeLine(ReferenceTokenType.KEYWORD.doTag("while"));
+        advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "(");
+        tokenizer.advance();
+        compileExpression();
+        writeExpected(ReferenceTokenType.SYMBOL, ")");
+        advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "{");
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        compileStatements(token);
+        writeExpected(ReferenceTokenType.SYMBOL, "}");
+        tokenizer.advance();
+        token = tokenizer.getCurrentToken();
+        endTag("whileStatement");
+    }
+
+    public void compileReturn() {
+        beginTag("returnStatement");
+        writeLine(ReferenceTokenType.KEYWORD.doTag("return"));
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        if (!token.equals(";")) {
+            compileExpression();
+        }
+        writeExpected(ReferenceTokenType.SYMBOL, ";");
+        endTag("returnStatement");
+    }
+
+    // current token is the open paren
+    // caller will write the closed paren
+    public void compileExpressionList() {
+        beginTag("expressionList");
+        tokenizer.advance();
+        String token = tokenizer.getCurrentToken();
+        while (!token.equals(")")) {
+            if (token.equals(",")) {
+                writeExpected(ReferenceTokenType.SYMBOL, ",");
+                tokenizer.advance();
+                token = tokenizer.getCurrentToken();
+            }
+            compileExpression();
+            token = tokenizer.getCurrentToken();
+        }
+        endTag("expressionList");
+    }
+
+    // this assumes "advance" has already happened
+    public void compileExpression() {
+        beginTag("expression");
+        compileTerm();
+        String token = tokenizer.getCurrentToken();
+        while (isOperation(token)) {
+            writeExpected(ReferenceTokenType.SYMBOL, token);
+            tokenizer.advance();
+            compileTerm();
+            token = tokenizer.getCurrentToken();
+        }
+        endTag("expression");
+    }
+
+    // assume we've already advanced
+    public void compileTerm() {
+        boolean needAdvance = true;
+        beginTag("term");
+        String token = tokenizer.getCurrentToken();
+        ReferenceTokenType type = tokenizer.tokenType();
+        if (isSimpleTerm(type)) {
+            writeLine(type.doTag(token));
+        } else if (isKeywordConstant(token)) {
+            writeLine(ReferenceTokenType.KEYWORD.doTag(token));
+        } else if (isUnaryOp(token)) {
+            writeLine(ReferenceTokenType.SYMBOL.doTag(token));
+            tokenizer.advance();
+            compileTerm();
+            needAdvance = false;
+        } else if (token.equals("(")) {
+            writeLine(ReferenceTokenType.SYMBOL.doTag("("));
+            tokenizer.advance();
+            compileExpression();
+            writeExpected(ReferenceTokenType.SYMBOL, ")");
+        } else {
+            // here we need a second token to figure out what we have
+            // but in all cases we'll be writing an identifier first
+            writeExpected(ReferenceTokenType.IDENTIFIER, token);
+            tokenizer.advance();
+            String nextToken = tokenizer.getCurrentToken();
+            if (nextToken.equals("[")) {
+                writeLine(ReferenceTokenType.SYMBOL.doTag("["));
+                tokenizer.advance();
+                compileExpression();
+                writeExpected(ReferenceTokenType.SYMBOL, "]");
+            } else if (nextToken.equals("(")) {
+                writeLine(ReferenceTokenType.SYMBOL.doTag("("));
+                compileExpressionList();
+                writeExpected(ReferenceTokenType.SYMBOL, ")");
+            } else if (nextToken.equals(".")) {
+                writeLine(ReferenceTokenType.SYMBOL.doTag("."));
+                advanceAndWriteExpected(ReferenceTokenType.IDENTIFIER, null);
+                advanceAndWriteExpected(ReferenceTokenType.SYMBOL, "(");
+                compileExpressionList();
+                writeExpected(ReferenceTokenType.SYMBOL, ")");
+            } else {
+                // it was just an identifier, so do nothing
+                needAdvance = false;
+            }
+        }
+        if (needAdvance) {
+            tokenizer.advance();
+        }
+        endTag("term");
+
+    }
+
+
+}
\ No newline at end of file
@@ -0,0 +1,30 @@
+// TokenType as it was in the baseline, for ReferenceTokenizer and ReferenceEngine
+public enum ReferenceTokenType {
+
+    KEYWORD("keyword"),
+    SYMBOL("symbol"),
+    INTEGER_CONSTANT("integerConstant"),
+    STRING_CONSTANT("stringConstant"),
+    IDENTIFIER("identifier");
+
+    private String tag;
+
+    private ReferenceTokenType(String tag) {
+        this.tag = tag;
+    }
+
+    public String getStartTag() {
+        return "<" + this.tag + ">";
+    }
+
+    public String getEndTag() {
+        return "</" + this.tag + ">";
+    }
+
+
+    public String doTag(String value) {
+        return getStartTag() + value + getEndTag();
+    }
+}
+
+
@@ -7,17 +7,21 @@ public enum TokenType {
     IDENTIFIER("identifier");
 
     private String tag;
+    private String startTag;
+    private String endTag;
 
     private TokenType(String tag) {
         this.tag = tag;
+        this.startTag = "<" + tag + ">";
+        this.endTag = "</" + tag + ">";
     }
 
     public String getStartTag() {
-        return "<" + this.tag + ">";
+        return startTag;
     }
 
     public String getEndTag() {
-        return "</" + this.tag + ">";
+        return endTag;
     }
 
 
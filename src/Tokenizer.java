@@ -1,10 +1,15 @@
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
 import sun.swing.StringUIClientPropertyKey;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.util.*;
 
 public class Tokenizer {
@@ -13,128 +18,436 @@ public class Tokenizer {
     private FileInputStream inputStream;
     private String currentToken;
     private TokenType currentTokenType;
+    // tokens being replayed and their types, or null while lexing
     private List<String> words;
+    private List<TokenType> wordTypes;
     private int wordIndex = -1;
-    private String remainder = null;
+    private boolean insideMultilineComment = false;
+    private Budget budget;
+    private byte[] readBuffer;
+    private CharsetDecoder decoder;
+
+    // while lexing, the source is decoded into text and every word is a range of it, so splitting
+    // lines and words, and taking what's left of a word after each token, makes no strings
+    private char[] text;
+    private int[] wordStarts;
+    private int[] wordEnds;
+    // words that were inside quotes, which are a string constant whatever they hold
+    private boolean[] stringWords;
+    private int wordCount;
+    // what's left of the current word after the last token, or -1 once there's nothing left
+    private int remainderStart = -1;
+    private int remainderEnd;
 
     final static String START_COMMENT = "/*";
     final static String END_COMMENT = "*/";
     final static String ONE_COMMENT = "//";
     final static String QUOTE = "\"";
 
+    private final static Charset UTF8 = Charset.forName(JackAnalyzer.UTF8);
+
+    // buffers that grew past this for one huge file are dropped rather than kept for the next
+    final static int MAX_POOLED_SIZE = 1024 * 1024;
+
     private final static String symbolString = "(){}[].,;+-*/&|<>=~";
 
-    private Map<String, String> translatorMap = new HashMap<String,String>();
+    // one string per symbol so a symbol token doesn't need a new one
+    private final static String[] symbolTokens = buildSymbolTokens();
+
+    private final static Map<String, String> translatorMap = buildTranslatorMap();
 
     private final static Set<String> keywordSet = new HashSet<String>(Arrays.asList(
             "class", "constructor", "function", "method", "field", "static", "var", "int", "char",
             "boolean","void","true","false","null","this","let","do","if","else","while","return"));
 
+    private final static List<String> keywordsByLength = sortByLength(keywordSet);
+
+    // an empty tokenizer, to be filled with one of the reset methods and reused from file to file
+    public Tokenizer() {
+    }
+
     public Tokenizer(File file) {
-        buildTranslatorMap();
-        boolean insideMultilineComment = false;
-        words = new ArrayList<String>();
+        this();
+        reset(file);
+    }
+
+    // used for sources that don't live on disk, e.g. entries read out of a zip
+    public Tokenizer(InputStream inputStream) {
+        this();
+        reset(inputStream);
+    }
+
+    // replays tokens that were already lexed, e.g. one subroutine's worth out of a pre-scanned file
+    public Tokenizer(List<String> tokens, List<TokenType> types) {
+        words = tokens;
+        wordTypes = types;
+    }
+
+    public void reset(File file) {
+        reset(file, null);
+    }
+
+    // the budget is checked while the file is read and split into words, not just once tokens come out
+    public void reset(File file, Budget budget) {
+        clear();
+        this.budget = budget;
+        FileInputStream in = null;
         try {
             this.file = file;
-            List<String> lines = FileUtils.readLines(file, "UTF-8");
-            for (String l:lines) {
-                String line = StringUtils.trimToEmpty(l);
-                if (line.startsWith(START_COMMENT)) {
-                    insideMultilineComment = true;
-                }
-                if (insideMultilineComment) {
-                    if (line.endsWith(END_COMMENT)) {
-                        insideMultilineComment = false;
-                    }
-                    continue;
-                }
-                line = StringUtils.substringBefore(line, ONE_COMMENT);
-                if (!line.contains(QUOTE)) {
-                    words.addAll(Arrays.asList(StringUtils.split(line)));
-                } else {
-                    words.addAll(getWordsInQuotedLine(line));
-                }
-            }
+            in = new FileInputStream(file);
+            tokenize(in);
+        } catch (BudgetExceededException e) {
+            throw e;
         } catch (Exception e) {
             throw new RuntimeException("could not open file");
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    public void reset(InputStream inputStream) {
+        reset(inputStream, null);
+    }
+
+    public void reset(InputStream inputStream, Budget budget) {
+        clear();
+        this.budget = budget;
+        try {
+            tokenize(inputStream);
+        } catch (BudgetExceededException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RuntimeException("could not read input");
+        }
+    }
+
+    // replays tokens that were already lexed, like the constructor that takes them
+    public void reset(List<String> tokens, List<TokenType> types) {
+        clear();
+        words = tokens;
+        wordTypes = types;
+    }
+
+    // lexes a single line; the caller carries the multiline comment state from one line to the next
+    public void reset(String line, boolean insideMultilineComment) {
+        clear();
+        this.insideMultilineComment = insideMultilineComment;
+        ensureText(line.length());
+        line.getChars(0, line.length(), text, 0);
+        addLine(0, line.length());
+    }
+
+    // back to empty, keeping the buffers unless they grew too big
+    private void clear() {
+        if (text != null && text.length > MAX_POOLED_SIZE) {
+            text = null;
+        }
+        if (wordStarts == null || wordStarts.length > MAX_POOLED_SIZE) {
+            wordStarts = new int[256];
+            wordEnds = new int[256];
+            stringWords = new boolean[256];
+        }
+        wordCount = 0;
+        words = null;
+        wordTypes = null;
+        file = null;
+        currentToken = null;
+        currentTokenType = null;
+        wordIndex = -1;
+        remainderStart = -1;
+        insideMultilineComment = false;
+        budget = null;
+    }
+
+    private void ensureText(int length) {
+        if (text == null || text.length < length) {
+            text = new char[Math.max(length, 8192)];
         }
     }
 
-    public List<String> getWordsInQuotedLine(String line) {
-        List<String> words = new ArrayList<String>();
+    // reads into a buffer that's kept across resets, and splits lines the way BufferedReader.readLine() does
+    private void tokenize(InputStream input) throws IOException {
+        if (readBuffer == null) {
+            readBuffer = new byte[8192];
+        }
+        int length = 0;
+        int read;
+        while ((read = input.read(readBuffer, length, readBuffer.length - length)) != -1) {
+            length += read;
+            if (length == readBuffer.length) {
+                readBuffer = Arrays.copyOf(readBuffer, readBuffer.length * 2);
+            }
+        }
+        // decoded the way new String() would, bad bytes included, but into the kept buffer.
+        // utf-8 never gives more chars than bytes
+        if (decoder == null) {
+            decoder = UTF8.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        ensureText(length);
+        CharBuffer chars = CharBuffer.wrap(text);
+        decoder.reset();
+        decoder.decode(ByteBuffer.wrap(readBuffer, 0, length), chars, true);
+        decoder.flush(chars);
+        int textLength = chars.position();
+        if (readBuffer.length > MAX_POOLED_SIZE) {
+            readBuffer = null;
+        }
+        int start = 0;
+        for (int i = 0; i < textLength; ++i) {
+            char c = text[i];
+            if (c == '\n' || c == '\r') {
+                addLine(start, i);
+                if (c == '\r' && i + 1 < textLength && text[i + 1] == '\n') {
+                    ++i;
+                }
+                start = i + 1;
+            }
+        }
+        if (start < textLength) {
+            addLine(start, textLength);
+        }
+    }
+
+    // the same steps as trimming the line, dropping comments and splitting it into words with
+    // StringUtils, but on offsets into text
+    private void addLine(int start, int end) {
+        if (budget != null) {
+            budget.checkTime();
+        }
+        // trimmed like String.trim()
+        while (start < end && text[start] <= ' ') {
+            ++start;
+        }
+        while (end > start && text[end - 1] <= ' ') {
+            --end;
+        }
+        if (regionMatches(start, end, start, START_COMMENT)) {
+            insideMultilineComment = true;
+        }
+        if (insideMultilineComment) {
+            if (regionMatches(start, end, end - END_COMMENT.length(), END_COMMENT)) {
+                insideMultilineComment = false;
+            }
+            return;
+        }
+        int comment = indexOf(start, end, ONE_COMMENT);
+        if (comment >= 0) {
+            end = comment;
+        }
+        if (indexOf(start, end, QUOTE) < 0) {
+            addWhitespaceSeparatedWords(start, end);
+        } else {
+            addWordsInQuotedLine(start, end);
+        }
+    }
+
+    public boolean isInsideMultilineComment() {
+        return insideMultilineComment;
+    }
+
+    // like StringUtils.split(), which splits on Character.isWhitespace()
+    private void addWhitespaceSeparatedWords(int start, int end) {
+        int i = start;
+        while (i < end) {
+            while (i < end && Character.isWhitespace(text[i])) {
+                ++i;
+            }
+            int wordStart = i;
+            while (i < end && !Character.isWhitespace(text[i])) {
+                ++i;
+            }
+            if (i > wordStart) {
+                addWord(wordStart, i, false);
+            }
+        }
+    }
+
+    // between quotes is one string word, even an empty one. outside them each stretch is one word,
+    // inner spaces and all, trimmed like String.trim() and dropped if that leaves nothing
+    private void addWordsInQuotedLine(int start, int end) {
         boolean inside = false;
-        String current = line;
-        while (current.length() > 0) {
-            String next = StringUtils.substringBefore(current, QUOTE);
+        while (start < end) {
+            int quote = indexOf(start, end, QUOTE);
+            int wordEnd = quote == -1 ? end : quote;
             if (inside) {
-                next = QUOTE + next + QUOTE;
+                addWord(start, wordEnd, true);
             } else {
-                next = StringUtils.trimToNull(next);
-            }
-            if (next != null) {
-                words.add(next);
+                int wordStart = start;
+                while (wordStart < wordEnd && text[wordStart] <= ' ') {
+                    ++wordStart;
+                }
+                while (wordEnd > wordStart && text[wordEnd - 1] <= ' ') {
+                    --wordEnd;
+                }
+                if (wordEnd > wordStart) {
+                    addWord(wordStart, wordEnd, false);
+                }
             }
-            current = StringUtils.substringAfter(current, QUOTE);
+            start = quote == -1 ? end : quote + QUOTE.length();
             inside = !inside;
         }
-        return words;
     }
 
+    private void addWord(int start, int end, boolean string) {
+        if (wordCount == wordStarts.length) {
+            wordStarts = Arrays.copyOf(wordStarts, wordCount * 2);
+            wordEnds = Arrays.copyOf(wordEnds, wordCount * 2);
+            stringWords = Arrays.copyOf(stringWords, wordCount * 2);
+        }
+        wordStarts[wordCount] = start;
+        wordEnds[wordCount] = end;
+        stringWords[wordCount] = string;
+        ++wordCount;
+    }
+
+    private int indexOf(int start, int end, String target) {
+        for (int i = start; i <= end - target.length(); ++i) {
+            if (regionMatches(start, end, i, target)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // whether target is at offset, all of it between start and end
+    private boolean regionMatches(int start, int end, int offset, String target) {
+        if (offset < start || offset + target.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < target.length(); ++i) {
+            if (text[offset + i] != target.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-    private void buildTranslatorMap() {
+    private static String[] buildSymbolTokens() {
+        String[] symbolTokens = new String[symbolString.length()];
+        for (int i = 0; i < symbolString.length(); ++i) {
+            symbolTokens[i] = symbolString.substring(i, i + 1);
+        }
+        return symbolTokens;
+    }
+
+    private static List<String> sortByLength(Set<String> keywords) {
+        List<String> sorted = new ArrayList<String>(keywords);
+        Collections.sort(sorted, new Comparator<String>() {
+            public int compare(String a, String b) {
+                return a.length() - b.length();
+            }
+        });
+        return sorted;
+    }
+
+    private static Map<String, String> buildTranslatorMap() {
+        Map<String, String> translatorMap = new HashMap<String,String>();
         translatorMap.put("&", "&amp;");
         translatorMap.put("<", "&lt;");
         translatorMap.put(">", "&gt;");
+        return translatorMap;
     }
 
     public boolean hasMoreTokens() {
-        return wordIndex + 1 < words.size() || remainder != null;
+        if (wordTypes != null) {
+            return wordIndex + 1 < words.size();
+        }
+        return wordIndex + 1 < wordCount || remainderStart >= 0;
     }
 
     public void advance() {
-        if (remainder == null) {
+        if (wordTypes != null) {
+            checkReplayBudget();
             ++wordIndex;
-            currentToken = getNextToken(words.get(wordIndex));
-        } else {
-            currentToken = getNextToken(remainder);
+            currentToken = words.get(wordIndex);
+            currentTokenType = wordTypes.get(wordIndex);
+            return;
+        }
+        checkBudget();
+        if (remainderStart < 0) {
+            ++wordIndex;
+            // the pooled arrays run past the last word, so this is where a list of them would throw
+            if (wordIndex >= wordCount) {
+                throw new IndexOutOfBoundsException("no word " + wordIndex);
+            }
+            if (stringWords[wordIndex]) {
+                currentTokenType = TokenType.STRING_CONSTANT;
+                currentToken = new String(text, wordStarts[wordIndex], wordEnds[wordIndex] - wordStarts[wordIndex]);
+                return;
+            }
+            remainderStart = wordStarts[wordIndex];
+            remainderEnd = wordEnds[wordIndex];
         }
+        currentToken = getNextToken();
     }
 
-    private String getNextToken(String string) {
-        if (string.startsWith(QUOTE)) {
-            currentTokenType = TokenType.STRING_CONSTANT;
-            return StringUtils.substringBetween(string, QUOTE, QUOTE);
+    // replayed tokens were already counted when they were lexed
+    private void checkBudget() {
+        if (budget != null) {
+            budget.addToken();
         }
+    }
+
+    // replayed tokens were already counted, so only the clock is checked, plus whether
+    // the subroutine task running this was cancelled
+    private void checkReplayBudget() {
+        if (budget != null) {
+            budget.checkTime();
+            if (Thread.currentThread().isInterrupted()) {
+                throw new BudgetExceededException("cancelled");
+            }
+        }
+    }
+
+    public void setBudget(Budget budget) {
+        this.budget = budget;
+    }
+
+    // the next token from what's left of the current word, which is then trimmed like String.trim()
+    private String getNextToken() {
+        int start = remainderStart;
+        int end = remainderEnd;
         String token = null;
-        String firstChar = StringUtils.left(string, 1);
-        if (StringUtils.isNumeric(firstChar)) {
+        char firstChar = text[start];
+        int length = 1;
+        if (Character.isDigit(firstChar)) {
             currentTokenType = TokenType.INTEGER_CONSTANT;
-            token = getNumber(string);
+            while (start + length < end && Character.isDigit(text[start + length])) {
+                ++length;
+            }
+            token = new String(text, start, length);
         } else if (isSymbol(firstChar)) {
             currentTokenType = TokenType.SYMBOL;
-            token = firstChar;
+            token = symbolTokens[symbolString.indexOf(firstChar)];
         } else {
-           // it's either a keyword or an identifier
-            int index = 0;
-            String soFar = "";
-            String nextChar = firstChar;
-            while (index < string.length() && !StringUtils.isNumeric(nextChar) && !isSymbol(nextChar)) {
-                soFar += nextChar;
-                if (keywordSet.contains(soFar)) {
+           // it's either a keyword or an identifier, running up to the next digit or symbol
+            while (start + length < end && !Character.isDigit(text[start + length]) && !isSymbol(text[start + length])) {
+                ++length;
+            }
+            // the shortest keyword it starts with wins
+            for (String keyword:keywordsByLength) {
+                if (keyword.length() <= length && regionMatches(start, end, start, keyword)) {
                     currentTokenType = TokenType.KEYWORD;
-                    token = soFar;
+                    token = keyword;
+                    length = keyword.length();
                     break;
                 }
-                ++index;
-                nextChar = StringUtils.substring(string, index, index + 1);
             }
             // if we made it to here we have an indentifier
             if (token == null) {
                 currentTokenType = TokenType.IDENTIFIER;
-                token = soFar;
+                token = new String(text, start, length);
             }
         }
-        remainder = StringUtils.trimToNull(StringUtils.substringAfter(string, token));
+        start += length;
+        while (start < end && text[start] <= ' ') {
+            ++start;
+        }
+        while (end > start && text[end - 1] <= ' ') {
+            --end;
+        }
+        remainderStart = start < end ? start : -1;
+        remainderEnd = end;
         return translate(token);
     }
 
@@ -145,16 +458,8 @@ public class Tokenizer {
         return token;
     }
 
-    private boolean isSymbol(String string) {
-        return symbolString.contains(string);
-    }
-
-    private String getNumber(String string) {
-        int length = 0;
-        while (length < string.length() && StringUtils.isNumeric(StringUtils.left(string, length+1))) {
-            ++length;
-        }
-        return StringUtils.left(string, length);
+    private boolean isSymbol(char c) {
+        return symbolString.indexOf(c) >= 0;
     }
 
 
@@ -166,6 +471,17 @@ public class Tokenizer {
         return currentTokenType;
     }
 
+    // only meaningful when replaying pre-lexed tokens
+    int getTokenIndex() {
+        return wordIndex;
+    }
+
+    void setTokenIndex(int index) {
+        wordIndex = index;
+        currentToken = words.get(wordIndex);
+        currentTokenType = wordTypes.get(wordIndex);
+    }
+
     String checkAndReturn(TokenType type) {
         if (currentTokenType != type) {
             throw new RuntimeException("unexpected type: " + type);